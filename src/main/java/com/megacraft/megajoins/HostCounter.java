@@ -0,0 +1,77 @@
+package com.megacraft.megajoins;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Open-addressing hostname -> long counter, used to merge partial per-host results without
+ * boxing every addition.
+ */
+public final class HostCounter {
+
+    private String[] keys;
+    private long[] values;
+    private int size;
+
+    public HostCounter() {
+        this(64);
+    }
+
+    public HostCounter(int expected) {
+        int cap = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new String[cap];
+        values = new long[cap];
+    }
+
+    public void add(String host, long n) {
+        int mask = keys.length - 1;
+        int i = mix(host.hashCode()) & mask;
+        while (true) {
+            String k = keys[i];
+            if (k == null) {
+                keys[i] = host;
+                values[i] = n;
+                if (++size * 2 > keys.length) grow();
+                return;
+            }
+            if (k.equals(host)) {
+                values[i] += n;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public void addAll(HostCounter other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != null) add(other.keys[i], other.values[i]);
+        }
+    }
+
+    public int size() { return size; }
+
+    /** Snapshot in the Map shape the storage API returns; counts are clamped to int. */
+    public Map<String, Integer> toMap() {
+        Map<String, Integer> out = new HashMap<>(size * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) out.put(keys[i], (int) Math.min(Integer.MAX_VALUE, values[i]));
+        }
+        return out;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) add(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
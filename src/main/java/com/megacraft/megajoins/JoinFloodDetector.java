@@ -0,0 +1,209 @@
+package com.megacraft.megajoins;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-host sliding-window join rate tracking. A host whose joins within the window reach the
+ * enter threshold is switched into flood mode: its joins are folded into per-second aggregates
+ * (count plus a reservoir of sampled uuids) instead of being written row by row. The host drops
+ * back to normal logging once the window falls below the exit threshold.
+ */
+public final class JoinFloodDetector {
+
+    /** Receives completed per-second aggregates for hosts in flood mode. */
+    public interface Sink {
+        void flush(String hostname, long second, int count, String[] sampleUuids);
+    }
+
+    /** A finished or ongoing flood episode for one host. */
+    public static final class FloodEvent {
+        public final String hostname;
+        public final long startSec;
+        public volatile long endSec;
+        public volatile int peakWindow;
+        public volatile long totalJoins;
+
+        FloodEvent(String hostname, long startSec) {
+            this.hostname = hostname;
+            this.startSec = startSec;
+        }
+
+        public boolean isActive() { return endSec == 0; }
+    }
+
+    private static final int MAX_HISTORY = 20;
+    private static final long IDLE_EVICT_SECONDS = 300;
+
+    private final int windowSeconds;
+    private final int enterThreshold;
+    private final int exitThreshold;
+    private final int sampleSize;
+    private final Sink sink;
+
+    private final Map<String, HostWindow> hosts = new ConcurrentHashMap<>();
+    private final ArrayDeque<FloodEvent> history = new ArrayDeque<>();
+
+    public JoinFloodDetector(int windowSeconds, int enterThreshold, int exitThreshold, int sampleSize, Sink sink) {
+        this.windowSeconds = Math.max(1, windowSeconds);
+        this.enterThreshold = Math.max(1, enterThreshold);
+        this.exitThreshold = Math.max(0, Math.min(exitThreshold, this.enterThreshold - 1));
+        this.sampleSize = Math.max(0, sampleSize);
+        this.sink = sink;
+    }
+
+    /**
+     * Count a join for the host. Returns true when the host is in flood mode and the join has
+     * been absorbed into the current per-second aggregate, false when it should be logged normally.
+     */
+    public boolean record(String hostname, String uuidTrimLower, long nowSec) {
+        HostWindow w = hosts.get(hostname);
+        if (w == null) {
+            w = hosts.computeIfAbsent(hostname, HostWindow::new);
+        }
+        FloodEvent started = null;
+        boolean flooded;
+        synchronized (w) {
+            int total = w.add(nowSec);
+            if (w.flood == null && total >= enterThreshold) {
+                w.flood = new FloodEvent(hostname, nowSec);
+                w.aggSecond = nowSec;
+                started = w.flood;
+            }
+            flooded = w.flood != null;
+            if (flooded) {
+                if (total > w.flood.peakWindow) w.flood.peakWindow = total;
+                w.flood.totalJoins++;
+                if (w.aggSecond != nowSec) {
+                    w.flushAggregate();
+                    w.aggSecond = nowSec;
+                }
+                w.sample(uuidTrimLower);
+            }
+        }
+        if (started != null) {
+            synchronized (history) {
+                history.addFirst(started);
+                while (history.size() > MAX_HISTORY) history.removeLast();
+            }
+        }
+        return flooded;
+    }
+
+    /**
+     * Called periodically (about once a second): flushes aggregates for seconds that have ended,
+     * leaves flood mode for hosts that have calmed down and forgets idle hosts.
+     */
+    public void tick(long nowSec) {
+        Iterator<HostWindow> it = hosts.values().iterator();
+        while (it.hasNext()) {
+            HostWindow w = it.next();
+            synchronized (w) {
+                if (w.flood != null) {
+                    if (w.aggSecond < nowSec) {
+                        w.flushAggregate();
+                        w.aggSecond = nowSec;
+                    }
+                    if (w.sum(nowSec) <= exitThreshold) {
+                        w.flushAggregate();
+                        w.flood.endSec = nowSec;
+                        w.flood = null;
+                    }
+                } else if (nowSec - w.lastSec > IDLE_EVICT_SECONDS) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Flush every pending aggregate and close open episodes, e.g. on shutdown. */
+    public void flushAll(long nowSec) {
+        for (HostWindow w : hosts.values()) {
+            synchronized (w) {
+                if (w.flood != null) {
+                    w.flushAggregate();
+                    w.flood.endSec = nowSec;
+                    w.flood = null;
+                }
+            }
+        }
+    }
+
+    /** Most recent flood episodes, newest first. */
+    public List<FloodEvent> getRecentEvents() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    public int getWindowSeconds() { return windowSeconds; }
+
+    public int getEnterThreshold() { return enterThreshold; }
+
+    /**
+     * Ring buffer of one-second slots. Slot i holds the count for the second stamped in
+     * slotSec[i]; stale slots are reset lazily, so recording a join never allocates.
+     */
+    private final class HostWindow {
+        final String hostname;
+        final long[] slotSec = new long[windowSeconds];
+        final int[] slotCount = new int[windowSeconds];
+        long lastSec;
+
+        FloodEvent flood;
+        long aggSecond;
+        int aggCount;
+        final String[] samples = new String[sampleSize];
+
+        HostWindow(String hostname) {
+            this.hostname = hostname;
+            Arrays.fill(slotSec, -1);
+        }
+
+        int add(long nowSec) {
+            int idx = (int) Math.floorMod(nowSec, (long) windowSeconds);
+            if (slotSec[idx] != nowSec) {
+                slotSec[idx] = nowSec;
+                slotCount[idx] = 0;
+            }
+            slotCount[idx]++;
+            lastSec = nowSec;
+            return sum(nowSec);
+        }
+
+        int sum(long nowSec) {
+            long oldest = nowSec - windowSeconds;
+            int total = 0;
+            for (int i = 0; i < windowSeconds; i++) {
+                if (slotSec[i] > oldest && slotSec[i] <= nowSec) total += slotCount[i];
+            }
+            return total;
+        }
+
+        void sample(String uuid) {
+            aggCount++;
+            if (sampleSize == 0 || uuid == null) return;
+            if (aggCount <= sampleSize) {
+                samples[aggCount - 1] = uuid;
+            } else {
+                int j = ThreadLocalRandom.current().nextInt(aggCount);
+                if (j < sampleSize) samples[j] = uuid;
+            }
+        }
+
+        void flushAggregate() {
+            if (aggCount == 0) return;
+            String[] out = Arrays.copyOf(samples, Math.min(aggCount, sampleSize));
+            int count = aggCount;
+            aggCount = 0;
+            Arrays.fill(samples, null);
+            sink.flush(hostname, aggSecond, count, out);
+        }
+    }
+}
@@ -1,18 +1,63 @@
 package com.megacraft.megajoins;
 
 import java.util.Map;
+import java.util.function.Consumer;
 
 public interface JoinStorage {
+    /** One logged join row, or a flood aggregate (uuid null, {@code joins} > 1 possible). */
+    interface JoinRowSink {
+        void accept(String hostname, String uuidTrimLower, long ts, int joins);
+    }
+
     void init() throws Exception;
+
+    /**
+     * Finish schema upgrades too slow to run in {@link #init()} (backfills on large tables).
+     * Called once off the enable path; safe to interrupt and resumed on the next start.
+     *
+     * @return rows updated
+     */
+    long finishUpgrade() throws Exception;
+
     void shutdown();
 
-    void logJoinSync(String hostname, String uuidTrimLower, String playerName) throws Exception;
+    /**
+     * Whether other proxies may write to the same storage. Their joins never pass through this
+     * proxy's in-memory state, so it cannot decide first joins or recent counts on its own.
+     */
+    boolean isShared();
+
+    void logJoinSync(String hostname, String uuidTrimLower, String playerName, long ts, boolean firstJoin) throws Exception;
+
+    /** Insert a join, flagged as first join when storage holds no earlier row for the uuid. */
+    void logJoinCheckedSync(String hostname, String uuidTrimLower, String playerName, long ts) throws Exception;
+
+    /** Backend plus database or file this storage writes to, e.g. to tell whether a cache belongs to it. */
+    String getIdentity();
+
+    /** Highest join row id so far, or 0 when there are none. */
+    long maxJoinId() throws Exception;
+
+    /** Whether any join row exists for the uuid; must reflect every write made so far. */
+    boolean hasJoined(String uuidTrimLower) throws Exception;
+
+    /** Stream every distinct uuid with a join at or after {@code start}. */
+    void forEachUuidSince(long start, Consumer<String> sink) throws Exception;
+
+    /** Stream join rows and flood aggregates with {@code from <= ts < to}, in no particular order. */
+    void forEachJoinBetween(long from, long to, JoinRowSink sink) throws Exception;
+
+    void logFloodSync(String hostname, long second, int count, String sampleUuids) throws Exception;
 
     Map<String, Integer> queryCountsSince(long start) throws Exception;
 
     Map<String, Integer> queryUniqueCountsSince(long start) throws Exception;
 
+    Map<String, Integer> queryNewCountsSince(long start) throws Exception;
+
     Map<String, Integer> queryByUuidSince(String uuidTrimLower, long start) throws Exception;
 
     Map<String, Integer> queryByUuidPrefixSince(String uuidTrimLowerPrefix, long start) throws Exception;
+
+    Map<String, Integer> queryFloodCountsSince(long start) throws Exception;
 }
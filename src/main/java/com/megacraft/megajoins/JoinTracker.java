@@ -0,0 +1,309 @@
+package com.megacraft.megajoins;
+
+import java.io.File;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Join ingest path behind the proxy event handlers: online counts per host, flood detection,
+ * first-join detection, the recent-window index and the single-threaded write queue. Kept free
+ * of plugin state so it can also be driven by the load harness with a simulated clock.
+ */
+public final class JoinTracker {
+
+    private final Map<String, Integer> currentCounts = new ConcurrentHashMap<>();
+    private final Map<UUID, String> playerHost = new ConcurrentHashMap<>();
+    private final JoinStorage db;
+    private final Logger logger;
+    private final LongSupplier clock;
+    private final Executor fallback;
+    private final ThreadPoolExecutor dbExec;
+    private JoinFloodDetector floodDetector;
+    private RecentJoinIndex recentIndex;
+
+    // Only touched from the write worker (and from shutdown once the worker has drained).
+    private SeenPlayerFilter seenPlayers;
+    private File seenSnapshot;
+
+    // Only touched from tick().
+    private long lastSnapshotRequest;
+    private long lastOverflowMinute = Long.MIN_VALUE;
+
+    private static final long SNAPSHOT_INTERVAL_SECONDS = 600;
+
+    /**
+     * @param db       storage to write to, or null to only track online counts
+     * @param clock    current time in epoch seconds
+     * @param fallback runs background work off the write queue (index warm-up) and writes
+     *                 once the write queue has been shut down
+     */
+    public JoinTracker(JoinStorage db, Logger logger, LongSupplier clock, Executor fallback) {
+        this.db = db;
+        this.logger = logger;
+        this.clock = clock;
+        this.fallback = fallback;
+        this.lastSnapshotRequest = clock.getAsLong();
+        this.dbExec = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "MegaJoins-DB");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void enableFloodDetection(int windowSeconds, int enterThreshold, int exitThreshold, int sampleSize) {
+        floodDetector = new JoinFloodDetector(windowSeconds, enterThreshold, exitThreshold, sampleSize, this::logFloodAggregate);
+    }
+
+    /**
+     * Load the seen-player filter from its snapshot (replaying joins logged after it) or rebuild
+     * it from storage. The load runs in the background so joins are not queued behind it; until
+     * the filter is ready, first joins are checked against storage. Not used with shared storage,
+     * where the filter would miss other proxies' players; storage flags first joins itself.
+     */
+    public void enableFirstJoinTracking(File snapshot, long expectedPlayers, double falsePositiveRate) {
+        final JoinStorage storage = db;
+        if (storage == null) {
+            return;
+        }
+        if (storage.isShared()) {
+            logger.info("Storage is shared with other proxies: first joins are decided at insert time");
+            return;
+        }
+        final long buildStart = clock.getAsLong();
+        fallback.execute(() -> {
+            long started = System.currentTimeMillis();
+            SeenPlayerFilter filter = SeenPlayerFilter.load(snapshot);
+            try {
+                // A snapshot of another database (storage settings changed) or of this one before
+                // a restore would treat its returning players as new: rebuild instead.
+                if (filter != null && (!storage.getIdentity().equals(filter.getStorageId())
+                        || filter.getMaxJoinId() > storage.maxJoinId())) {
+                    logger.info("Seen-player snapshot does not match " + storage.getIdentity() + ", rebuilding from storage");
+                    filter = null;
+                }
+            } catch (Exception e) {
+                filter = null;
+            }
+            // Replay a little before the covered timestamp: joins in the same second may have
+            // been written after the snapshot was taken. Adding a uuid twice is harmless.
+            final long from = filter != null ? Math.max(0, filter.getCoveredTs() - 60) : 0;
+            if (filter == null) {
+                filter = new SeenPlayerFilter(expectedPlayers, falsePositiveRate);
+            }
+            final SeenPlayerFilter f = filter;
+            try {
+                storage.forEachUuidSince(from, uuid -> f.add(uuid, buildStart));
+            } catch (Exception e) {
+                logger.warning("Failed to load seen players, first joins will be checked against storage only: " + e.getMessage());
+                return;
+            }
+            // Joins logged while the filter was loading were checked against storage. Fold them
+            // in from the write worker, so no write can land between the replay and the swap.
+            submitWrite(() -> {
+                final long now = clock.getAsLong();
+                try {
+                    storage.forEachUuidSince(buildStart - 60, uuid -> f.add(uuid, now));
+                } catch (Exception e) {
+                    logger.warning("Failed to load seen players, first joins will be checked against storage only: " + e.getMessage());
+                    return;
+                }
+                seenPlayers = f;
+                seenSnapshot = snapshot;
+                logger.info("Seen-player filter ready: ~" + f.getApproximateCount() + " players ("
+                        + (from == 0 ? "rebuilt from storage" : "snapshot + replay") + ", "
+                        + (System.currentTimeMillis() - started) + " ms)");
+            });
+        });
+    }
+
+    /**
+     * Keep the last {@code hours} of joins in memory. Joins from now on are recorded live; older
+     * ones are loaded from storage in the background and the index only answers once that is done.
+     */
+    public void enableRecentIndex(int hours, int maxEntries) {
+        final RecentJoinIndex index = new RecentJoinIndex(hours, maxEntries);
+        final long liveFrom = clock.getAsLong();
+        final long warmFrom = liveFrom - index.getHours() * 3600L - 60;
+        recentIndex = index;
+        final JoinStorage storage = db;
+        if (storage == null) {
+            index.markReady(liveFrom);
+            return;
+        }
+        fallback.execute(() -> {
+            long started = System.currentTimeMillis();
+            try {
+                storage.forEachJoinBetween(warmFrom, liveFrom, index::record);
+            } catch (Exception e) {
+                logger.warning("Failed to warm recent join index, short ranges will use storage: " + e.getMessage());
+                return;
+            }
+            index.markReady(warmFrom);
+            logger.info("Recent join index ready: last " + index.getHours() + "h ("
+                    + (System.currentTimeMillis() - started) + " ms)");
+        });
+    }
+
+    public void onJoin(UUID onlineUuid, String host, String name) {
+        String offlineUuidTrim = IdUtil.offlineUuidTrimmed(name);
+        long now = clock.getAsLong();
+
+        playerHost.put(onlineUuid, host);
+        currentCounts.merge(host, 1, Integer::sum);
+
+        // Hosts in flood mode are written as per-second aggregates by the detector's sink.
+        JoinFloodDetector detector = floodDetector;
+        boolean flooded = db != null && detector != null && detector.record(host, offlineUuidTrim, now);
+
+        // Flooded joins have no row of their own, so like storage they only count towards totals.
+        RecentJoinIndex index = recentIndex;
+        if (index != null) {
+            index.record(host, flooded ? null : offlineUuidTrim, now, 1);
+        }
+
+        final JoinStorage storage = db;
+        if (storage == null || flooded) {
+            return;
+        }
+
+        submitWrite(() -> {
+            try {
+                if (storage.isShared()) {
+                    storage.logJoinCheckedSync(host, offlineUuidTrim, name, now);
+                } else {
+                    storage.logJoinSync(host, offlineUuidTrim, name, now, isFirstJoin(storage, offlineUuidTrim, now));
+                }
+            } catch (Exception e) {
+                logger.warning("Failed to log join: " + e.getMessage());
+            }
+        });
+    }
+
+    public void onQuit(UUID onlineUuid) {
+        String host = playerHost.remove(onlineUuid);
+        if (host == null) host = "unknown";
+        currentCounts.compute(host, (h, c) -> (c == null || c <= 1) ? null : c - 1);
+    }
+
+    /** Periodic housekeeping, called about once a second. */
+    public void tick() {
+        long now = clock.getAsLong();
+        JoinFloodDetector detector = floodDetector;
+        if (detector != null) {
+            detector.tick(now);
+        }
+        RecentJoinIndex index = recentIndex;
+        if (index != null) {
+            index.prune(now);
+            long overflow = index.getOverflowMinute();
+            if (overflow != lastOverflowMinute) {
+                // Once per episode, not every minute it lasts.
+                if (lastOverflowMinute == Long.MIN_VALUE || overflow - lastOverflowMinute > 60) {
+                    logger.warning("Recent join index is full (too many hosts/players); ranges reaching back to now use storage");
+                }
+                lastOverflowMinute = overflow;
+            }
+        }
+        if (now - lastSnapshotRequest >= SNAPSHOT_INTERVAL_SECONDS) {
+            lastSnapshotRequest = now;
+            submitWrite(this::saveSeenPlayers);
+        }
+    }
+
+    /** Flush pending aggregates and drain queued writes; storage itself is left open. */
+    public void shutdown() {
+        currentCounts.clear();
+        playerHost.clear();
+        if (floodDetector != null) {
+            floodDetector.flushAll(clock.getAsLong());
+        }
+        dbExec.shutdown();
+        try {
+            if (dbExec.awaitTermination(2, TimeUnit.SECONDS)) {
+                saveSeenPlayers();
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    public Map<String, Integer> getCurrentCounts() {
+        return new ConcurrentHashMap<>(currentCounts);
+    }
+
+    public JoinFloodDetector getFloodDetector() { return floodDetector; }
+
+    public RecentJoinIndex getRecentIndex() { return recentIndex; }
+
+    /**
+     * Joins (or distinct players) per host since {@code start} from the recent index, or null
+     * when the index is off or does not hold the whole range and storage has to answer.
+     */
+    public Map<String, Integer> recentCountsSince(long start, boolean unique) {
+        RecentJoinIndex index = recentIndex;
+        if (index == null) return null;
+        long now = clock.getAsLong();
+        return unique ? index.uniqueCountsSince(start, now) : index.countsSince(start, now);
+    }
+
+    public int getWriteQueueDepth() { return dbExec.getQueue().size(); }
+
+    public long getCompletedWrites() { return dbExec.getCompletedTaskCount(); }
+
+    /**
+     * Decide whether this is the player's first logged join. A filter miss is definitive; a hit
+     * is confirmed against storage because the filter can report false positives.
+     */
+    private boolean isFirstJoin(JoinStorage storage, String uuidTrimLower, long ts) throws Exception {
+        SeenPlayerFilter seen = seenPlayers;
+        if (seen != null && !seen.mightContain(uuidTrimLower)) {
+            seen.add(uuidTrimLower, ts);
+            return true;
+        }
+        boolean first = !storage.hasJoined(uuidTrimLower);
+        if (seen != null) {
+            seen.add(uuidTrimLower, ts);
+        }
+        return first;
+    }
+
+    private void saveSeenPlayers() {
+        if (seenPlayers == null || seenSnapshot == null) {
+            return;
+        }
+        try {
+            // Runs on the write worker (or after it drained), so every logged join is below this id.
+            seenPlayers.save(seenSnapshot, db.getIdentity(), db.maxJoinId());
+        } catch (Exception e) {
+            logger.warning("Failed to save seen-player snapshot: " + e.getMessage());
+        }
+    }
+
+    private void logFloodAggregate(String host, long second, int count, String[] sampleUuids) {
+        final JoinStorage storage = db;
+        if (storage == null) {
+            return;
+        }
+        final String samples = String.join(",", sampleUuids);
+        submitWrite(() -> {
+            try {
+                storage.logFloodSync(host, second, count, samples);
+            } catch (Exception e) {
+                logger.warning("Failed to log flood aggregate: " + e.getMessage());
+            }
+        });
+    }
+
+    private void submitWrite(Runnable task) {
+        if (!dbExec.isShutdown()) {
+            dbExec.execute(task);
+        } else {
+            fallback.execute(task);
+        }
+    }
+}
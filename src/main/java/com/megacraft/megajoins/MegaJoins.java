@@ -5,6 +5,7 @@ import net.md_5.bungee.api.event.PlayerDisconnectEvent;
 import net.md_5.bungee.api.event.PostLoginEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.api.plugin.Plugin;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
 import net.md_5.bungee.config.Configuration;
 import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
@@ -15,20 +16,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.*;
 
 public final class MegaJoins extends Plugin implements Listener {
 
-    private final Map<String, Integer> currentCounts = new ConcurrentHashMap<>();
-    private final Map<UUID, String> playerHost = new ConcurrentHashMap<>();
     private JoinStorage db;
+    private JoinTracker tracker;
+    private ScheduledTask tickTask;
 
     // Async executors
-    private ExecutorService dbExec;
     private ExecutorService lookupExec;
 
     @Override
@@ -42,17 +43,22 @@ public final class MegaJoins extends Plugin implements Listener {
             getLogger().severe("Failed to init storage: " + e.getMessage());
             e.printStackTrace();
         }
-        dbExec = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "MegaJoins-DB");
-            t.setDaemon(true);
-            return t;
-        });
+        tracker = new JoinTracker(db, getLogger(), () -> System.currentTimeMillis() / 1000,
+                task -> getProxy().getScheduler().runAsync(this, task));
+        if (db != null) {
+            finishStorageUpgrade(db);
+        }
+        configureFloodDetection(config.getSection("flood"));
+        configureFirstJoinTracking(config.getSection("first-join"));
+        configureRecentIndex(config.getSection("recent-index"));
         lookupExec = Executors.newFixedThreadPool(2, r -> {
             Thread t = new Thread(r, "MegaJoins-LOOKUP");
             t.setDaemon(true);
             return t;
         });
 
+        tickTask = getProxy().getScheduler().schedule(this, tracker::tick, 1, 1, TimeUnit.SECONDS);
+
         getProxy().getPluginManager().registerListener(this, this);
         getProxy().getPluginManager().registerCommand(this, new MegaJoinsCommand(this));
         getLogger().info("MegaJoins enabled.");
@@ -60,15 +66,16 @@ public final class MegaJoins extends Plugin implements Listener {
 
     @Override
     public void onDisable() {
-        currentCounts.clear();
-        playerHost.clear();
+        if (tickTask != null) {
+            tickTask.cancel();
+        }
+        // Drain queued writes (including flushed flood aggregates) before closing storage.
+        if (tracker != null) {
+            tracker.shutdown();
+        }
         if (db != null) {
             db.shutdown();
         }
-        if (dbExec != null) {
-            dbExec.shutdown();
-            try { dbExec.awaitTermination(2, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
-        }
         if (lookupExec != null) {
             lookupExec.shutdown();
             try { lookupExec.awaitTermination(2, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
@@ -83,53 +90,26 @@ public final class MegaJoins extends Plugin implements Listener {
         if (host == null || host.isEmpty()) host = "unknown";
         host = host.toLowerCase();
 
-        UUID onlineUuid = event.getPlayer().getUniqueId();
-        String name = event.getPlayer().getName();
-        String offlineUuidTrim = IdUtil.offlineUuidTrimmed(name);
-
-        playerHost.put(onlineUuid, host);
-        currentCounts.merge(host, 1, Integer::sum);
-
-        final String fHost = host;
-        final String fUuid = offlineUuidTrim;
-        final String fName = name;
-        final JoinStorage storage = db;
-        if (storage == null) {
-            return;
-        }
-
-        Runnable task = () -> {
-            try {
-                storage.logJoinSync(fHost, fUuid, fName);
-            } catch (Exception e) {
-                getLogger().warning("Failed to log join: " + e.getMessage());
-            }
-        };
-
-        ExecutorService executor = dbExec;
-        if (executor != null && !executor.isShutdown()) {
-            executor.execute(task);
-        } else {
-            getProxy().getScheduler().runAsync(this, task);
-        }
+        tracker.onJoin(event.getPlayer().getUniqueId(), host, event.getPlayer().getName());
     }
 
     @EventHandler
     public void onDisconnect(PlayerDisconnectEvent event) {
-        UUID uuid = event.getPlayer().getUniqueId();
-        String host = playerHost.remove(uuid);
-        if (host == null) host = "unknown";
-        currentCounts.compute(host, (h, c) -> (c == null || c <= 1) ? null : c - 1);
+        tracker.onQuit(event.getPlayer().getUniqueId());
     }
 
     public Map<String,Integer> getCurrentCounts() {
-        return new ConcurrentHashMap<>(currentCounts);
+        return tracker.getCurrentCounts();
     }
 
     public JoinStorage getDb() { return db; }
 
     public ExecutorService getLookupExec() { return lookupExec; }
 
+    public JoinFloodDetector getFloodDetector() { return tracker.getFloodDetector(); }
+
+    public Map<String,Integer> recentCountsSince(long start, boolean unique) { return tracker.recentCountsSince(start, unique); }
+
     private Configuration loadConfig() {
         File dataFolder = getDataFolder();
         if (!dataFolder.exists() && !dataFolder.mkdirs()) {
@@ -155,6 +135,72 @@ public final class MegaJoins extends Plugin implements Listener {
         }
     }
 
+    /** Slow schema upgrades (first-join backfill on large MySQL tables) run after enabling. */
+    private void finishStorageUpgrade(JoinStorage storage) {
+        getProxy().getScheduler().runAsync(this, () -> {
+            try {
+                long rows = storage.finishUpgrade();
+                if (rows > 0) {
+                    getLogger().info("Storage upgrade finished: " + rows + " earlier first joins flagged");
+                }
+            } catch (Exception e) {
+                getLogger().warning("Storage upgrade incomplete, it resumes on next start: " + e.getMessage());
+            }
+        });
+    }
+
+    private void configureFloodDetection(Configuration flood) {
+        int windowSeconds = 10;
+        int enterThreshold = 200;
+        int exitThreshold = 50;
+        int sampleSize = 5;
+        if (flood != null) {
+            if (!flood.getBoolean("enabled", true)) {
+                return;
+            }
+            windowSeconds = flood.getInt("window-seconds", windowSeconds);
+            enterThreshold = flood.getInt("enter-threshold", enterThreshold);
+            exitThreshold = flood.getInt("exit-threshold", exitThreshold);
+            sampleSize = flood.getInt("sample-size", sampleSize);
+        }
+        // sample_uuids is a VARCHAR(1024) on MySQL: 16 trimmed uuids plus separators fit.
+        sampleSize = Math.max(0, Math.min(16, sampleSize));
+        getLogger().info("Flood detection: " + enterThreshold + " joins/" + windowSeconds + "s per host");
+        tracker.enableFloodDetection(windowSeconds, enterThreshold, exitThreshold, sampleSize);
+    }
+
+    private void configureFirstJoinTracking(Configuration firstJoin) {
+        long expectedPlayers = 100000;
+        double fpRate = 0.001;
+        String snapshot = "seen-players.bin";
+        if (firstJoin != null) {
+            expectedPlayers = firstJoin.getLong("expected-players", expectedPlayers);
+            fpRate = firstJoin.getDouble("false-positive-rate", fpRate);
+            snapshot = firstJoin.getString("snapshot-file", snapshot);
+        }
+        tracker.enableFirstJoinTracking(new File(getDataFolder(), snapshot), expectedPlayers, fpRate);
+    }
+
+    private void configureRecentIndex(Configuration recent) {
+        // The index only sees this proxy's joins, so it is off by default on shared storage.
+        boolean shared = db != null && db.isShared();
+        int hours = 24;
+        int maxEntries = 300000;
+        if (recent != null) {
+            if (!recent.getBoolean("enabled", !shared)) {
+                return;
+            }
+            hours = recent.getInt("hours", hours);
+            maxEntries = recent.getInt("max-entries", maxEntries);
+        } else if (shared) {
+            return;
+        }
+        if (shared) {
+            getLogger().warning("recent-index is enabled on shared storage: short ranges will only count this proxy's joins");
+        }
+        tracker.enableRecentIndex(hours, maxEntries);
+    }
+
     private JoinStorage createStorage(Configuration storage) throws Exception {
         if (storage == null) {
             return new SQLite(getDataFolder(), "data.db");
@@ -173,10 +219,27 @@ public final class MegaJoins extends Plugin implements Listener {
                 String pass = mysql.getString("password", "");
                 boolean useSsl = mysql.getBoolean("use-ssl", true);
                 boolean allowPublicKey = mysql.getBoolean("allow-public-key-retrieval", false);
-                int maxPool = 5;
-                Configuration pool = mysql.getSection("pool");
-                if (pool != null) {
-                    maxPool = pool.getInt("max-size", maxPool);
+                boolean shared = mysql.getBoolean("shared", true);
+                MySQL.PoolSettings writePool = poolSettings(mysql.getSection("pool"), 5, 30000);
+                MySQL.PoolSettings readPool = writePool;
+                List<String> replicas = new ArrayList<>();
+                long maxLag = 30;
+                long shortRange = 86400;
+                long retry = 30;
+                int parallelism = 4;
+                long parallelMinRange = 604800;
+                Configuration read = mysql.getSection("read");
+                if (read != null) {
+                    readPool = poolSettings(read.getSection("pool"), 5, 10000);
+                    replicas.addAll(read.getStringList("replicas"));
+                    maxLag = read.getLong("max-lag-seconds", maxLag);
+                    shortRange = read.getLong("short-range-seconds", shortRange);
+                    retry = read.getLong("retry-seconds", retry);
+                    Configuration parallel = read.getSection("parallel");
+                    if (parallel != null) {
+                        parallelism = parallel.getInt("max-degree", parallelism);
+                        parallelMinRange = parallel.getLong("min-range-seconds", parallelMinRange);
+                    }
                 }
                 Map<String, String> props = new HashMap<>();
                 Configuration propsSection = mysql.getSection("properties");
@@ -185,8 +248,21 @@ public final class MegaJoins extends Plugin implements Listener {
                         props.put(key, String.valueOf(propsSection.get(key)));
                     }
                 }
-                getLogger().info("Using MySQL storage at " + host + ":" + port + "/" + database);
-                return new MySQL(host, port, database, user, pass, useSsl, allowPublicKey, maxPool, props);
+                getLogger().info("Using MySQL storage at " + host + ":" + port + "/" + database
+                        + (replicas.isEmpty() ? "" : " (reads via replicas " + replicas + ")"));
+                if (shared) {
+                    String note = "storage.mysql.shared is " + (mysql.contains("shared") ? "true" : "not set (defaults to true)")
+                            + ": first joins are checked by the database on every insert and the recent-range index is off."
+                            + " Set storage.mysql.shared: false if this is the only proxy using this database.";
+                    if (mysql.contains("shared")) {
+                        getLogger().info(note);
+                    } else {
+                        getLogger().warning(note);
+                    }
+                }
+                MySQL.ReadSettings reads = new MySQL.ReadSettings(readPool, replicas, maxLag, shortRange, retry,
+                        parallelism, parallelMinRange);
+                return new MySQL(host, port, database, user, pass, useSsl, allowPublicKey, shared, writePool, reads, props);
             }
             case "sqlite":
             default: {
@@ -200,4 +276,11 @@ public final class MegaJoins extends Plugin implements Listener {
             }
         }
     }
+
+    private MySQL.PoolSettings poolSettings(Configuration pool, int defMaxSize, long defTimeoutMs) {
+        if (pool == null) {
+            return new MySQL.PoolSettings(defMaxSize, defTimeoutMs);
+        }
+        return new MySQL.PoolSettings(pool.getInt("max-size", defMaxSize), pool.getLong("connection-timeout-ms", defTimeoutMs));
+    }
 }
@@ -65,11 +65,34 @@ public class MegaJoinsCommand extends Command {
                     }
                     final long fStart = start;
                     final String label = (start==0?"(all)":("since "+rangeArg));
+                    Map<String,Integer> recent = plugin.recentCountsSince(fStart, true);
+                    if (recent != null) {
+                        sendDomainAndSubdomain(sender, "UNIQUE Joins " + label, recent, null);
+                        return;
+                    }
                     runAsyncLookup(sender, () -> storage.queryUniqueCountsSince(fStart), (unique) -> {
                         sendDomainAndSubdomain(sender, "UNIQUE Joins " + label, unique, null);
                     });
                     return;
                 }
+                case "new": {
+                    if (args.length < 2) {
+                        sender.sendMessage(new TextComponent(ChatColor.YELLOW + "Usage: /megajoins new <range|all>"));
+                        return;
+                    }
+                    String rangeArg = args[1].toLowerCase(Locale.ROOT);
+                    long start = rangeArg.equals("all") ? 0 : parseRange(rangeArg, System.currentTimeMillis()/1000);
+                    if (start == -1) {
+                        sender.sendMessage(new TextComponent(ChatColor.RED + "Invalid range: " + rangeArg));
+                        return;
+                    }
+                    final long fStart = start;
+                    final String label = (start==0?"(all)":("since "+rangeArg));
+                    runAsyncLookup(sender, () -> storage.queryNewCountsSince(fStart), (fresh) -> {
+                        sendDomainAndSubdomain(sender, "NEW Players " + label, fresh, null);
+                    });
+                    return;
+                }
                 case "player": {
                     if (args.length < 2) {
                         sender.sendMessage(new TextComponent(ChatColor.YELLOW + "Usage: /megajoins player <name> [range]"));
@@ -111,6 +134,22 @@ public class MegaJoinsCommand extends Command {
                     });
                     return;
                 }
+                case "floods": {
+                    long start = 0;
+                    if (args.length >= 2) {
+                        start = parseRange(args[1].toLowerCase(Locale.ROOT), System.currentTimeMillis()/1000);
+                        if (start == -1) {
+                            sender.sendMessage(new TextComponent(ChatColor.RED + "Invalid range: " + args[1]));
+                            return;
+                        }
+                    }
+                    sendFloodEvents(sender);
+                    final long fStart = start;
+                    runAsyncLookup(sender, () -> storage.queryFloodCountsSince(fStart), (data) -> {
+                        sendDomainAndSubdomain(sender, "Aggregated flood joins" + (fStart==0?" (all)":" ("+args[1]+")"), data, null);
+                    });
+                    return;
+                }
                 case "domain": {
                     if (args.length < 2) {
                         sender.sendMessage(new TextComponent(ChatColor.YELLOW + "Usage: /megajoins domain <domain|sub.domain>"));
@@ -165,6 +204,11 @@ public class MegaJoinsCommand extends Command {
                         return;
                     }
                     final long fStart = start;
+                    Map<String,Integer> recent = plugin.recentCountsSince(fStart, false);
+                    if (recent != null) {
+                        sendDomainAndSubdomain(sender, "Joins since " + sub, recent, null);
+                        return;
+                    }
                     runAsyncLookup(sender, () -> storage.queryCountsSince(fStart), (counts) -> {
                         sendDomainAndSubdomain(sender, "Joins since " + sub, counts, null);
                     });
@@ -206,9 +250,46 @@ public class MegaJoinsCommand extends Command {
         sender.sendMessage(new TextComponent(ChatColor.AQUA + "/megajoins all" + ChatColor.GRAY + " — all-time joins by domain and subdomain"));
         sender.sendMessage(new TextComponent(ChatColor.AQUA + "/megajoins <N>[h|d|w|m|y]" + ChatColor.GRAY + " — joins in range by domain and subdomain"));
         sender.sendMessage(new TextComponent(ChatColor.AQUA + "/megajoins unique <range|all>" + ChatColor.GRAY + " — UNIQUE joins by domain and subdomain"));
+        sender.sendMessage(new TextComponent(ChatColor.AQUA + "/megajoins new <range|all>" + ChatColor.GRAY + " — first-ever joins by domain and subdomain"));
         sender.sendMessage(new TextComponent(ChatColor.AQUA + "/megajoins player <name> [range]" + ChatColor.GRAY + " — joins for a player by domain and subdomain"));
         sender.sendMessage(new TextComponent(ChatColor.AQUA + "/megajoins uuid <uuid|prefix> [range]" + ChatColor.GRAY + " — joins for a UUID by domain and subdomain"));
         sender.sendMessage(new TextComponent(ChatColor.AQUA + "/megajoins domain <domain|sub.domain>" + ChatColor.GRAY + " — domain/subdomain summary (all-time + UNIQUE)"));
+        sender.sendMessage(new TextComponent(ChatColor.AQUA + "/megajoins floods [range]" + ChatColor.GRAY + " — join floods and aggregated flood joins"));
+        JoinFloodDetector detector = plugin.getFloodDetector();
+        if (detector != null) {
+            for (JoinFloodDetector.FloodEvent ev : detector.getRecentEvents()) {
+                if (ev.isActive()) {
+                    sender.sendMessage(new TextComponent(ChatColor.RED + "Flood mode active: " + ev.hostname + ChatColor.GRAY + " (peak " + ev.peakWindow + " joins/" + detector.getWindowSeconds() + "s)"));
+                }
+            }
+        }
+    }
+
+    private void sendFloodEvents(CommandSender sender) {
+        JoinFloodDetector detector = plugin.getFloodDetector();
+        if (detector == null) {
+            sender.sendMessage(new TextComponent(ChatColor.GRAY + "Flood detection is disabled."));
+            return;
+        }
+        sender.sendMessage(new TextComponent(ChatColor.GOLD + "Recent join floods (threshold " + detector.getEnterThreshold() + " joins/" + detector.getWindowSeconds() + "s):"));
+        List<JoinFloodDetector.FloodEvent> events = detector.getRecentEvents();
+        if (events.isEmpty()) {
+            sender.sendMessage(new TextComponent(ChatColor.GRAY + "  (none)"));
+            return;
+        }
+        long now = System.currentTimeMillis()/1000;
+        for (JoinFloodDetector.FloodEvent ev : events) {
+            long end = ev.isActive() ? now : ev.endSec;
+            String state = ev.isActive() ? (ChatColor.RED + "ACTIVE") : (ChatColor.GRAY + "ended " + formatSeconds(now - end) + " ago");
+            sender.sendMessage(new TextComponent(ChatColor.AQUA + "  " + ev.hostname + ChatColor.GRAY + " -> " + ChatColor.GREEN + ev.totalJoins
+                    + ChatColor.GRAY + " joins over " + formatSeconds(end - ev.startSec) + ", peak " + ev.peakWindow + "/" + detector.getWindowSeconds() + "s, " + state));
+        }
+    }
+
+    private String formatSeconds(long secs) {
+        if (secs < 120) return secs + "s";
+        if (secs < 7200) return (secs / 60) + "m";
+        return (secs / 3600) + "h";
     }
 
     private void sendDomainAndSubdomain(CommandSender sender, String title, Map<String,Integer> counts, String rangeLabel) {
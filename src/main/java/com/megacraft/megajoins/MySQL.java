@@ -2,27 +2,133 @@ package com.megacraft.megajoins;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.pool.HikariPool;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class MySQL implements JoinStorage {
 
-    private final String jdbcUrl;
+    /** Sizing and checkout timeout for one Hikari pool. */
+    public static final class PoolSettings {
+        final int maxSize;
+        final long connectionTimeoutMs;
+
+        public PoolSettings(int maxSize, long connectionTimeoutMs) {
+            this.maxSize = Math.max(1, maxSize);
+            this.connectionTimeoutMs = Math.max(250, connectionTimeoutMs);
+        }
+    }
+
+    /**
+     * Where analytics queries go. Without replicas they use a dedicated read pool on the primary;
+     * with replicas they are spread round-robin over the healthy ones. A replica whose data lags
+     * the primary by more than {@code maxLagSeconds} is skipped for ranges shorter than
+     * {@code shortRangeSeconds}, which would otherwise miss recent joins.
+     *
+     * <p>Count and unique aggregates over ranges of at least {@code parallelMinRangeSeconds} are
+     * split into time slices and run on up to {@code maxParallelism} read connections at once.
+     */
+    public static final class ReadSettings {
+        final PoolSettings pool;
+        final List<String> replicas;
+        final long maxLagSeconds;
+        final long shortRangeSeconds;
+        final long retrySeconds;
+        final int maxParallelism;
+        final long parallelMinRangeSeconds;
+
+        public ReadSettings(PoolSettings pool, List<String> replicas, long maxLagSeconds, long shortRangeSeconds, long retrySeconds,
+                            int maxParallelism, long parallelMinRangeSeconds) {
+            this.pool = pool;
+            this.replicas = replicas != null ? new ArrayList<>(replicas) : Collections.emptyList();
+            this.maxLagSeconds = maxLagSeconds;
+            this.shortRangeSeconds = shortRangeSeconds;
+            this.retrySeconds = Math.max(1, retrySeconds);
+            this.maxParallelism = Math.max(1, maxParallelism);
+            this.parallelMinRangeSeconds = Math.max(0, parallelMinRangeSeconds);
+        }
+    }
+
+    private static final long LAG_CHECK_INTERVAL_MS = 5000;
+    private static final long SPARE_CHECKOUT_TIMEOUT_MS = 250;
+    private static final int INSERT_ATTEMPTS = 3;
+    private static final int ER_DUP_FIELDNAME = 1060;
+    private static final int ER_DUP_KEYNAME = 1061;
+    private static final String FIRST_JOIN_BACKFILL = "first_join_backfill";
+    private static final int BACKFILL_BATCH = 1000;
+    private static final long BACKFILL_PAUSE_MS = 50;
+
+    private final String host;
+    private final int port;
+    private final String database;
+    private final boolean useSsl;
+    private final boolean allowPublicKeyRetrieval;
+    private final boolean shared;
     private final String username;
     private final String password;
     private final Properties dataSourceProperties;
-    private final int maxPoolSize;
-    private HikariDataSource dataSource;
+    private final PoolSettings writeSettings;
+    private final ReadSettings readSettings;
+    private HikariDataSource writeSource;
+    private HikariDataSource primaryReadSource;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private ExecutorService sliceExec;
+    private ScheduledExecutorService lagExec;
 
     public MySQL(String host, int port, String database, String username, String password, boolean useSsl, boolean allowPublicKeyRetrieval, int maxPoolSize, Map<String, String> properties) {
+        this(host, port, database, username, password, useSsl, allowPublicKeyRetrieval, true,
+                new PoolSettings(maxPoolSize, 30000),
+                new ReadSettings(new PoolSettings(maxPoolSize, 30000), null, 30, 86400, 30, 4, 604800),
+                properties);
+    }
+
+    /**
+     * @param shared whether other proxies write to the same database; first joins are then
+     *               decided by the database at insert time
+     */
+    public MySQL(String host, int port, String database, String username, String password, boolean useSsl, boolean allowPublicKeyRetrieval,
+                 boolean shared, PoolSettings writeSettings, ReadSettings readSettings, Map<String, String> properties) {
+        this.host = host;
+        this.port = port;
+        this.database = database;
+        this.useSsl = useSsl;
+        this.allowPublicKeyRetrieval = allowPublicKeyRetrieval;
+        this.shared = shared;
         this.username = username;
         this.password = password;
+        this.dataSourceProperties = new Properties();
+        if (properties != null) {
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                this.dataSourceProperties.setProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        this.writeSettings = writeSettings;
+        this.readSettings = readSettings;
+    }
+
+    private String jdbcUrl(String host, int port) {
         StringBuilder url = new StringBuilder();
         url.append("jdbc:mysql://").append(host).append(":").append(port).append("/").append(database);
         url.append("?useSSL=").append(useSsl);
@@ -30,114 +136,721 @@ public class MySQL implements JoinStorage {
         if (allowPublicKeyRetrieval) {
             url.append("&allowPublicKeyRetrieval=true");
         }
-        this.jdbcUrl = url.toString();
-        this.dataSourceProperties = new Properties();
-        if (properties != null) {
-            for (Map.Entry<String, String> entry : properties.entrySet()) {
-                this.dataSourceProperties.setProperty(entry.getKey(), entry.getValue());
-            }
-        }
-        this.maxPoolSize = maxPoolSize;
+        return url.toString();
     }
 
-    @Override
-    public void init() throws Exception {
+    private HikariDataSource createPool(String name, String url, PoolSettings settings, boolean readOnly) {
         HikariConfig config = new HikariConfig();
-        config.setJdbcUrl(jdbcUrl);
+        config.setJdbcUrl(url);
         config.setUsername(username);
         config.setPassword(password);
-        config.setPoolName("MegaJoins-MySQL");
-        config.setMaximumPoolSize(Math.max(1, maxPoolSize));
+        config.setPoolName(name);
+        config.setMaximumPoolSize(settings.maxSize);
+        config.setConnectionTimeout(settings.connectionTimeoutMs);
+        config.setReadOnly(readOnly);
         for (String key : dataSourceProperties.stringPropertyNames()) {
             config.addDataSourceProperty(key, dataSourceProperties.getProperty(key));
         }
         config.setConnectionTestQuery("SELECT 1");
-        dataSource = new HikariDataSource(config);
+        if (readOnly) {
+            // A replica that is down at startup must not keep the plugin from enabling.
+            config.setInitializationFailTimeout(-1);
+        }
+        return new HikariDataSource(config);
+    }
+
+    @Override
+    public void init() throws Exception {
+        writeSource = createPool("MegaJoins-MySQL-Write", jdbcUrl(host, port), writeSettings, false);
 
-        try (Connection conn = dataSource.getConnection(); Statement st = conn.createStatement()) {
+        try (Connection conn = writeSource.getConnection(); Statement st = conn.createStatement()) {
             st.executeUpdate("CREATE TABLE IF NOT EXISTS joins (" +
                     "id INT AUTO_INCREMENT PRIMARY KEY," +
                     "hostname VARCHAR(255) NOT NULL," +
                     "uuid CHAR(32) NOT NULL," +
                     "player_name VARCHAR(64) NOT NULL," +
                     "ts BIGINT NOT NULL," +
+                    "is_first_join TINYINT NOT NULL DEFAULT 0," +
                     "INDEX idx_joins_ts (ts)," +
                     "INDEX idx_joins_host_ts (hostname, ts)," +
-                    "INDEX idx_joins_uuid_ts (uuid, ts)" +
+                    "INDEX idx_joins_uuid_ts (uuid, ts)," +
+                    "INDEX idx_joins_first_ts (is_first_join, ts)" +
+                    ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS megajoins_meta (" +
+                    "name VARCHAR(64) PRIMARY KEY," +
+                    "value BIGINT NOT NULL" +
+                    ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci");
+            if (!hasColumn(st, "joins", "is_first_join")) {
+                // Databases from before first-join tracking: add the flag here and leave the index
+                // and the backfill of existing rows to finishUpgrade(). Another proxy starting at
+                // the same time may add the column first, which is just as good.
+                try {
+                    st.executeUpdate("ALTER TABLE joins ADD COLUMN is_first_join TINYINT NOT NULL DEFAULT 0");
+                } catch (SQLException e) {
+                    if (e.getErrorCode() != ER_DUP_FIELDNAME) throw e;
+                }
+                st.executeUpdate("INSERT IGNORE INTO megajoins_meta(name, value) VALUES ('" + FIRST_JOIN_BACKFILL + "', 0)");
+            }
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS join_floods (" +
+                    "id INT AUTO_INCREMENT PRIMARY KEY," +
+                    "hostname VARCHAR(255) NOT NULL," +
+                    "ts BIGINT NOT NULL," +
+                    "joins INT NOT NULL," +
+                    "sample_uuids VARCHAR(1024) NOT NULL," +
+                    "INDEX idx_join_floods_ts (ts)," +
+                    "INDEX idx_join_floods_host_ts (hostname, ts)" +
                     ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci");
         }
+
+        primaryReadSource = createPool("MegaJoins-MySQL-Read", jdbcUrl(host, port), readSettings.pool, true);
+        for (String endpoint : readSettings.replicas) {
+            String replicaHost = endpoint;
+            int replicaPort = port;
+            int colon = endpoint.lastIndexOf(':');
+            if (colon > 0) {
+                replicaHost = endpoint.substring(0, colon);
+                replicaPort = Integer.parseInt(endpoint.substring(colon + 1));
+            }
+            String name = "MegaJoins-MySQL-Replica-" + (replicas.size() + 1);
+            replicas.add(new Replica(createPool(name, jdbcUrl(replicaHost, replicaPort), readSettings.pool, true)));
+        }
+        if (!replicas.isEmpty()) {
+            lagExec = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "MegaJoins-LAG");
+                t.setDaemon(true);
+                return t;
+            });
+            lagExec.scheduleWithFixedDelay(this::refreshLag, 0, LAG_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        if (readSettings.maxParallelism > 1) {
+            sliceExec = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "MegaJoins-SLICE");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Flag each uuid's earliest row in databases upgraded from before first-join tracking. Works
+     * through the table in id batches and records progress in megajoins_meta, so a restart resumes
+     * where it stopped; proxies running it concurrently only repeat idempotent updates.
+     */
+    @Override
+    public long finishUpgrade() throws Exception {
+        long cursor;
+        try (Connection conn = writeSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT value FROM megajoins_meta WHERE name = ?")) {
+            ps.setString(1, FIRST_JOIN_BACKFILL);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return 0;
+                cursor = rs.getLong(1);
+            }
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("ALTER TABLE joins ADD INDEX idx_joins_first_ts (is_first_join, ts)");
+            } catch (SQLException e) {
+                if (e.getErrorCode() != ER_DUP_KEYNAME) throw e;
+            }
+        }
+        long flagged = 0;
+        while (true) {
+            try (Connection conn = writeSource.getConnection()) {
+                long to;
+                try (PreparedStatement ps = conn.prepareStatement("SELECT MAX(id) FROM (SELECT id FROM joins WHERE id > ? ORDER BY id LIMIT " + BACKFILL_BATCH + ") b")) {
+                    ps.setLong(1, cursor);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        to = rs.next() ? rs.getLong(1) : 0;
+                        if (rs.wasNull()) to = 0;
+                    }
+                }
+                if (to == 0) {
+                    try (PreparedStatement ps = conn.prepareStatement("DELETE FROM megajoins_meta WHERE name = ?")) {
+                        ps.setString(1, FIRST_JOIN_BACKFILL);
+                        ps.executeUpdate();
+                    }
+                    return flagged;
+                }
+                List<Long> firsts = new ArrayList<>();
+                try (PreparedStatement ps = conn.prepareStatement("SELECT j.id FROM joins j WHERE j.id > ? AND j.id <= ? " +
+                        "AND NOT EXISTS (SELECT 1 FROM joins e WHERE e.uuid = j.uuid AND e.id < j.id)")) {
+                    ps.setLong(1, cursor);
+                    ps.setLong(2, to);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) firsts.add(rs.getLong(1));
+                    }
+                }
+                if (!firsts.isEmpty()) {
+                    StringBuilder sql = new StringBuilder("UPDATE joins SET is_first_join = 1 WHERE id IN (");
+                    for (int i = 0; i < firsts.size(); i++) sql.append(i == 0 ? "?" : ",?");
+                    try (PreparedStatement ps = conn.prepareStatement(sql.append(")").toString())) {
+                        for (int i = 0; i < firsts.size(); i++) ps.setLong(i + 1, firsts.get(i));
+                        flagged += ps.executeUpdate();
+                    }
+                }
+                try (PreparedStatement ps = conn.prepareStatement("UPDATE megajoins_meta SET value = GREATEST(value, ?) WHERE name = ?")) {
+                    ps.setLong(1, to);
+                    ps.setString(2, FIRST_JOIN_BACKFILL);
+                    ps.executeUpdate();
+                }
+                cursor = to;
+            }
+            // Leave the write pool to live inserts between batches.
+            Thread.sleep(BACKFILL_PAUSE_MS);
+        }
+    }
+
+    private static boolean hasColumn(Statement st, String table, String column) throws SQLException {
+        try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() " +
+                "AND TABLE_NAME = '" + table + "' AND COLUMN_NAME = '" + column + "'")) {
+            return rs.next() && rs.getInt(1) > 0;
+        }
     }
 
     @Override
     public void shutdown() {
-        if (dataSource != null) {
-            dataSource.close();
+        if (lagExec != null) {
+            lagExec.shutdownNow();
+        }
+        if (sliceExec != null) {
+            sliceExec.shutdownNow();
+        }
+        for (Replica r : replicas) {
+            r.source.close();
+        }
+        if (primaryReadSource != null) {
+            primaryReadSource.close();
+        }
+        if (writeSource != null) {
+            writeSource.close();
+        }
+    }
+
+    /**
+     * Connection for an analytics query over [start, now]. Tries replicas round-robin, skipping
+     * ones marked down and, for short ranges, ones lagging too far behind; falls back to the
+     * primary read pool.
+     */
+    private ReadLease readConnection(long start) throws SQLException {
+        return readConnection(start, false);
+    }
+
+    /**
+     * With {@code spareOnly}, only pools that would still have a free connection afterwards are
+     * used and null is returned when there are none, so fan-out never starves other lookups. The
+     * checkout then waits briefly; losing the spare connection to another lookup in the meantime
+     * also returns null and does not count against the replica's health.
+     */
+    private ReadLease readConnection(long start, boolean spareOnly) throws SQLException {
+        int n = replicas.size();
+        if (n > 0) {
+            long nowMs = System.currentTimeMillis();
+            boolean shortRange = start > 0 && nowMs / 1000 - start <= readSettings.shortRangeSeconds;
+            int first = Math.floorMod(nextReplica.getAndIncrement(), n);
+            for (int i = 0; i < n; i++) {
+                Replica r = replicas.get((first + i) % n);
+                if (r.downUntilMs > nowMs) continue;
+                if (spareOnly && !hasSpare(r.source)) continue;
+                if (shortRange && r.lagSeconds > readSettings.maxLagSeconds) continue;
+                if (spareOnly) {
+                    Connection spare = spareConnection(r.source);
+                    return spare != null ? new ReadLease(spare, r) : null;
+                }
+                try {
+                    return new ReadLease(r.source.getConnection(), r);
+                } catch (SQLException e) {
+                    r.markDown(nowMs);
+                }
+            }
+        }
+        if (spareOnly) {
+            Connection spare = hasSpare(primaryReadSource) ? spareConnection(primaryReadSource) : null;
+            return spare != null ? new ReadLease(spare, null) : null;
+        }
+        return new ReadLease(primaryReadSource.getConnection(), null);
+    }
+
+    private static Connection spareConnection(HikariDataSource source) {
+        try {
+            HikariPoolMXBean pool = source.getHikariPoolMXBean();
+            if (pool instanceof HikariPool) {
+                return ((HikariPool) pool).getConnection(SPARE_CHECKOUT_TIMEOUT_MS);
+            }
+            return source.getConnection();
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run one read statement. If it fails on a replica (replica stopped, link dropped mid-query)
+     * that replica is marked down and the statement is retried once on the next healthy replica
+     * or the primary; failures on the primary are thrown as is.
+     */
+    private <T> T withReadConnection(long start, ReadQuery<T> query) throws SQLException {
+        SQLException replicaFailure;
+        try (ReadLease lease = readConnection(start)) {
+            try {
+                return query.run(lease.conn);
+            } catch (SQLException e) {
+                if (lease.replica == null) throw e;
+                lease.replica.markDown(System.currentTimeMillis());
+                replicaFailure = e;
+            }
+        }
+        try (ReadLease lease = readConnection(start)) {
+            return query.run(lease.conn);
+        } catch (SQLException e) {
+            e.addSuppressed(replicaFailure);
+            throw e;
+        }
+    }
+
+    private interface ReadQuery<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    /** A read connection and the replica it came from, or null for the primary read pool. */
+    private static final class ReadLease implements AutoCloseable {
+        final Connection conn;
+        final Replica replica;
+
+        ReadLease(Connection conn, Replica replica) {
+            this.conn = conn;
+            this.replica = replica;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            conn.close();
+        }
+    }
+
+    private static boolean hasSpare(HikariDataSource source) {
+        HikariPoolMXBean pool = source.getHikariPoolMXBean();
+        return pool != null && source.getMaximumPoolSize() - pool.getActiveConnections() >= 2;
+    }
+
+    /**
+     * Measure how far each replica's data trails the primary, judged by the newest join timestamp
+     * on each side. Needs no replication privileges. Runs every few seconds on its own thread so
+     * lookups never wait on it; a lag that cannot be measured counts as too far behind.
+     */
+    private void refreshLag() {
+        long primaryMax;
+        try (Connection conn = primaryReadSource.getConnection()) {
+            primaryMax = maxTs(conn);
+        } catch (Exception e) {
+            for (Replica r : replicas) r.lagSeconds = Long.MAX_VALUE;
+            return;
+        }
+        for (Replica r : replicas) {
+            try (Connection conn = r.source.getConnection()) {
+                r.lagSeconds = Math.max(0, primaryMax - maxTs(conn));
+            } catch (Exception e) {
+                r.markDown(System.currentTimeMillis());
+                r.lagSeconds = Long.MAX_VALUE;
+            }
         }
     }
 
+    private static long maxTs(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT MAX(ts) FROM joins")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private final class Replica {
+        final HikariDataSource source;
+        volatile long downUntilMs;
+        // Unknown until the first measurement.
+        volatile long lagSeconds = Long.MAX_VALUE;
+
+        Replica(HikariDataSource source) {
+            this.source = source;
+        }
+
+        void markDown(long nowMs) {
+            downUntilMs = nowMs + readSettings.retrySeconds * 1000;
+        }
+    }
+
+    /** Accumulates the results of the slices one fan-out worker runs on its connection. */
+    private interface SliceWorker {
+        void run(Connection conn, long from, long to) throws SQLException;
+    }
+
+    /**
+     * Run a range aggregate as concurrent time slices. Takes one connection as usual plus as many
+     * spare ones as the read pools allow, up to the configured parallelism, splits [start, now]
+     * into twice as many slices as connections and lets each worker pull slices from a shared
+     * queue. The last slice is open-ended so rows stamped after "now" are still counted.
+     * Returns null when the range is too short or no spare connection is available, in which
+     * case the caller runs its single statement. A slice failing on a replica marks it down and
+     * also returns null, so the single statement retries elsewhere.
+     */
+    private <W extends SliceWorker> List<W> fanOut(long start, Supplier<W> newWorker) throws Exception {
+        long now = System.currentTimeMillis() / 1000;
+        if (sliceExec == null || now - start < readSettings.parallelMinRangeSeconds) {
+            return null;
+        }
+        List<ReadLease> conns = new ArrayList<>();
+        try {
+            conns.add(readConnection(start));
+            long lo = start;
+            if (start <= 0) {
+                try (Statement st = conns.get(0).conn.createStatement(); ResultSet rs = st.executeQuery("SELECT MIN(ts) FROM joins")) {
+                    if (!rs.next()) return null;
+                    lo = rs.getLong(1);
+                    if (rs.wasNull() || now - lo < readSettings.parallelMinRangeSeconds) return null;
+                }
+            }
+            while (conns.size() < readSettings.maxParallelism) {
+                ReadLease extra = readConnection(start, true);
+                if (extra == null) break;
+                conns.add(extra);
+            }
+            if (conns.size() < 2) {
+                return null;
+            }
+
+            int slices = conns.size() * 2;
+            ConcurrentLinkedQueue<long[]> queue = new ConcurrentLinkedQueue<>();
+            long step = Math.max(1, (now - lo + slices - 1) / slices);
+            long from = start;
+            for (int i = 1; i < slices; i++) {
+                long to = lo + i * step;
+                if (to > from) {
+                    queue.add(new long[]{from, to});
+                    from = to;
+                }
+            }
+            queue.add(new long[]{from, Long.MAX_VALUE});
+
+            List<W> workers = new ArrayList<>();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 1; i < conns.size(); i++) {
+                W w = newWorker.get();
+                workers.add(w);
+                Connection c = conns.get(i).conn;
+                futures.add(sliceExec.submit(() -> {
+                    drainSlices(queue, c, w);
+                    return null;
+                }));
+            }
+            W self = newWorker.get();
+            workers.add(self);
+            Exception failure = null;
+            boolean primaryFailed = false;
+            try {
+                drainSlices(queue, conns.get(0).conn, self);
+            } catch (Exception e) {
+                queue.clear();
+                failure = e;
+                primaryFailed = !markFailed(conns.get(0));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    queue.clear();
+                    if (failure == null) failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                    primaryFailed |= !markFailed(conns.get(i + 1));
+                }
+            }
+            if (failure != null) {
+                if (primaryFailed || !(failure instanceof SQLException)) throw failure;
+                return null;
+            }
+            return workers;
+        } finally {
+            for (ReadLease c : conns) {
+                try { c.close(); } catch (SQLException ignored) {}
+            }
+        }
+    }
+
+    /** Mark the lease's replica down after a failed slice; false when it was the primary. */
+    private static boolean markFailed(ReadLease lease) {
+        if (lease.replica == null) return false;
+        lease.replica.markDown(System.currentTimeMillis());
+        return true;
+    }
+
+    private static void drainSlices(ConcurrentLinkedQueue<long[]> queue, Connection conn, SliceWorker worker) throws SQLException {
+        long[] slice;
+        while ((slice = queue.poll()) != null) {
+            worker.run(conn, slice[0], slice[1]);
+        }
+    }
+
+    private static final class CountWorker implements SliceWorker {
+        final HostCounter counts = new HostCounter();
+
+        @Override
+        public void run(Connection conn, long from, long to) throws SQLException {
+            final String sql = "SELECT hostname, SUM(c) AS c FROM (" +
+                    "SELECT hostname, COUNT(*) AS c FROM joins WHERE ts >= ? AND ts < ? GROUP BY hostname " +
+                    "UNION ALL " +
+                    "SELECT hostname, SUM(joins) AS c FROM join_floods WHERE ts >= ? AND ts < ? GROUP BY hostname" +
+                    ") t GROUP BY hostname";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, from);
+                ps.setLong(2, to);
+                ps.setLong(3, from);
+                ps.setLong(4, to);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) counts.add(rs.getString(1), rs.getLong(2));
+                }
+            }
+        }
+    }
+
+    /** Builds per-host HyperLogLog registers server-side; see {@link HyperLogLog} for the hash. */
+    private static final class UniqueWorker implements SliceWorker {
+        final Map<String, HyperLogLog> sketches = new HashMap<>();
+
+        @Override
+        public void run(Connection conn, long from, long to) throws SQLException {
+            final String sql = "SELECT hostname, CONV(SUBSTRING(uuid, 1, 3), 16, 10) AS reg, " +
+                    "MAX(61 - LENGTH(BIN(CONV(SUBSTRING(uuid, 18, 15), 16, 10)))) AS r " +
+                    "FROM joins WHERE ts >= ? AND ts < ? GROUP BY hostname, reg";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, from);
+                ps.setLong(2, to);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        sketches.computeIfAbsent(rs.getString(1), h -> new HyperLogLog()).offerRegister(rs.getInt(2), rs.getInt(3));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isShared() {
+        return shared;
+    }
+
     @Override
-    public void logJoinSync(String hostname, String uuidTrimLower, String playerName) throws Exception {
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement ps = conn.prepareStatement("INSERT INTO joins(hostname, uuid, player_name, ts) VALUES (?,?,?,?)")) {
+    public void logJoinSync(String hostname, String uuidTrimLower, String playerName, long ts, boolean firstJoin) throws Exception {
+        try (Connection conn = writeSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement("INSERT INTO joins(hostname, uuid, player_name, ts, is_first_join) VALUES (?,?,?,?,?)")) {
             ps.setString(1, hostname);
             ps.setString(2, uuidTrimLower);
             ps.setString(3, playerName);
-            ps.setLong(4, System.currentTimeMillis() / 1000);
+            ps.setLong(4, ts);
+            ps.setInt(5, firstJoin ? 1 : 0);
             ps.executeUpdate();
         }
     }
 
     @Override
-    public Map<String, Integer> queryCountsSince(long start) throws Exception {
-        final String sql = "SELECT hostname, COUNT(*) AS c FROM joins WHERE ts >= ? GROUP BY hostname";
-        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, start);
+    public void logJoinCheckedSync(String hostname, String uuidTrimLower, String playerName, long ts) throws Exception {
+        final String sql = "INSERT INTO joins(hostname, uuid, player_name, ts, is_first_join) " +
+                "SELECT ?, ?, ?, ?, NOT EXISTS (SELECT 1 FROM joins WHERE uuid = ?) FROM DUAL";
+        for (int attempt = 1; ; attempt++) {
+            try (Connection conn = writeSource.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setString(1, hostname);
+                ps.setString(2, uuidTrimLower);
+                ps.setString(3, playerName);
+                ps.setLong(4, ts);
+                ps.setString(5, uuidTrimLower);
+                ps.executeUpdate();
+                return;
+            } catch (SQLException e) {
+                // Two proxies inserting the same new player can deadlock on the uuid index gap.
+                if (!"40001".equals(e.getSQLState()) || attempt >= INSERT_ATTEMPTS) throw e;
+            }
+        }
+    }
+
+    @Override
+    public String getIdentity() {
+        return "mysql:" + host + ":" + port + "/" + database;
+    }
+
+    @Override
+    public long maxJoinId() throws Exception {
+        try (Connection conn = writeSource.getConnection(); Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT MAX(id) FROM joins")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    @Override
+    public boolean hasJoined(String uuidTrimLower) throws Exception {
+        // Primary write pool: a lagging replica could miss the player's earlier rows.
+        try (Connection conn = writeSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM joins WHERE uuid = ? LIMIT 1")) {
+            ps.setString(1, uuidTrimLower);
             try (ResultSet rs = ps.executeQuery()) {
-                Map<String, Integer> out = new HashMap<>();
-                while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
-                return out;
+                return rs.next();
             }
         }
     }
 
     @Override
-    public Map<String, Integer> queryUniqueCountsSince(long start) throws Exception {
-        final String sql = "SELECT hostname, COUNT(DISTINCT uuid) AS c FROM joins WHERE ts >= ? GROUP BY hostname";
-        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+    public void forEachUuidSince(long start, Consumer<String> sink) throws Exception {
+        try (Connection conn = primaryReadSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT DISTINCT uuid FROM joins WHERE ts >= ?",
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(Integer.MIN_VALUE); // stream rows instead of buffering the whole result
             ps.setLong(1, start);
             try (ResultSet rs = ps.executeQuery()) {
-                Map<String, Integer> out = new HashMap<>();
-                while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
-                return out;
+                while (rs.next()) sink.accept(rs.getString(1));
+            }
+        }
+    }
+
+    @Override
+    public void forEachJoinBetween(long from, long to, JoinRowSink sink) throws Exception {
+        // Primary read pool: a lagging replica would leave a gap right before live recording starts.
+        try (Connection conn = primaryReadSource.getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement("SELECT hostname, uuid, ts FROM joins WHERE ts >= ? AND ts < ?",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                ps.setFetchSize(Integer.MIN_VALUE);
+                ps.setLong(1, from);
+                ps.setLong(2, to);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) sink.accept(rs.getString(1), rs.getString(2), rs.getLong(3), 1);
+                }
             }
+            try (PreparedStatement ps = conn.prepareStatement("SELECT hostname, ts, joins FROM join_floods WHERE ts >= ? AND ts < ?")) {
+                ps.setLong(1, from);
+                ps.setLong(2, to);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) sink.accept(rs.getString(1), null, rs.getLong(2), rs.getInt(3));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void logFloodSync(String hostname, long second, int count, String sampleUuids) throws Exception {
+        try (Connection conn = writeSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement("INSERT INTO join_floods(hostname, ts, joins, sample_uuids) VALUES (?,?,?,?)")) {
+            ps.setString(1, hostname);
+            ps.setLong(2, second);
+            ps.setInt(3, count);
+            ps.setString(4, sampleUuids);
+            ps.executeUpdate();
         }
     }
 
+    @Override
+    public Map<String, Integer> queryCountsSince(long start) throws Exception {
+        List<CountWorker> parts = fanOut(start, CountWorker::new);
+        if (parts != null) {
+            HostCounter merged = new HostCounter();
+            for (CountWorker w : parts) merged.addAll(w.counts);
+            return merged.toMap();
+        }
+        final String sql = "SELECT hostname, SUM(c) AS c FROM (" +
+                "SELECT hostname, COUNT(*) AS c FROM joins WHERE ts >= ? GROUP BY hostname " +
+                "UNION ALL " +
+                "SELECT hostname, SUM(joins) AS c FROM join_floods WHERE ts >= ? GROUP BY hostname" +
+                ") t GROUP BY hostname";
+        return withReadConnection(start, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, start);
+                ps.setLong(2, start);
+                try (ResultSet rs = ps.executeQuery()) {
+                    Map<String, Integer> out = new HashMap<>();
+                    while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
+                    return out;
+                }
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Integer> queryUniqueCountsSince(long start) throws Exception {
+        List<UniqueWorker> parts = fanOut(start, UniqueWorker::new);
+        if (parts != null) {
+            Map<String, HyperLogLog> merged = new HashMap<>();
+            for (UniqueWorker w : parts) {
+                for (Map.Entry<String, HyperLogLog> e : w.sketches.entrySet()) {
+                    merged.computeIfAbsent(e.getKey(), h -> new HyperLogLog()).merge(e.getValue());
+                }
+            }
+            Map<String, Integer> out = new HashMap<>();
+            for (Map.Entry<String, HyperLogLog> e : merged.entrySet()) {
+                out.put(e.getKey(), (int) e.getValue().estimate());
+            }
+            return out;
+        }
+        final String sql = "SELECT hostname, COUNT(DISTINCT uuid) AS c FROM joins WHERE ts >= ? GROUP BY hostname";
+        return withReadConnection(start, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, start);
+                try (ResultSet rs = ps.executeQuery()) {
+                    Map<String, Integer> out = new HashMap<>();
+                    while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
+                    return out;
+                }
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Integer> queryNewCountsSince(long start) throws Exception {
+        final String sql = "SELECT hostname, COUNT(*) AS c FROM joins WHERE is_first_join = 1 AND ts >= ? GROUP BY hostname";
+        return withReadConnection(start, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, start);
+                try (ResultSet rs = ps.executeQuery()) {
+                    Map<String, Integer> out = new HashMap<>();
+                    while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
+                    return out;
+                }
+            }
+        });
+    }
+
     @Override
     public Map<String, Integer> queryByUuidSince(String uuidTrimLower, long start) throws Exception {
         final String sql = "SELECT hostname, COUNT(*) AS c FROM joins WHERE uuid = ? AND ts >= ? GROUP BY hostname";
-        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, uuidTrimLower);
-            ps.setLong(2, start);
-            try (ResultSet rs = ps.executeQuery()) {
-                Map<String, Integer> out = new HashMap<>();
-                while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
-                return out;
+        return withReadConnection(start, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setString(1, uuidTrimLower);
+                ps.setLong(2, start);
+                try (ResultSet rs = ps.executeQuery()) {
+                    Map<String, Integer> out = new HashMap<>();
+                    while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
+                    return out;
+                }
             }
-        }
+        });
     }
 
     @Override
     public Map<String, Integer> queryByUuidPrefixSince(String uuidTrimLowerPrefix, long start) throws Exception {
         final String sql = "SELECT hostname, COUNT(*) AS c FROM joins WHERE uuid LIKE ? AND ts >= ? GROUP BY hostname";
-        try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, uuidTrimLowerPrefix + "%");
-            ps.setLong(2, start);
-            try (ResultSet rs = ps.executeQuery()) {
-                Map<String, Integer> out = new HashMap<>();
-                while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
-                return out;
+        return withReadConnection(start, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setString(1, uuidTrimLowerPrefix + "%");
+                ps.setLong(2, start);
+                try (ResultSet rs = ps.executeQuery()) {
+                    Map<String, Integer> out = new HashMap<>();
+                    while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
+                    return out;
+                }
             }
-        }
+        });
+    }
+
+    @Override
+    public Map<String, Integer> queryFloodCountsSince(long start) throws Exception {
+        final String sql = "SELECT hostname, SUM(joins) AS c FROM join_floods WHERE ts >= ? GROUP BY hostname";
+        return withReadConnection(start, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, start);
+                try (ResultSet rs = ps.executeQuery()) {
+                    Map<String, Integer> out = new HashMap<>();
+                    while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
+                    return out;
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,251 @@
+package com.megacraft.megajoins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-minute index over the last N hours of joins so short ranges can be answered without
+ * touching storage. Each minute with joins gets a bucket of host -> (joins, uuids last seen in
+ * this minute); a map of uuid -> last minute seen per host keeps the second figure exact, so the
+ * number of distinct players since any minute is the sum over the newer buckets (no sketch).
+ * Ranges are resolved to whole minutes: the minute containing the range start counts.
+ *
+ * <p>Hosts are spread over lock stripes so joins on different hosts rarely contend, and
+ * {@link #prune(long)} expires old minutes from the tick thread, touching only the uuids last
+ * seen in them, so joins never wait on a sweep over the whole index. Memory is bounded by one
+ * {@code maxEntries} budget shared by all stripes (host-minutes plus tracked uuids), so a single
+ * busy host can use all of it: once full, further joins are not indexed and ranges reaching back
+ * to them are left to storage until they age out.
+ */
+public final class RecentJoinIndex {
+
+    private static final int STRIPES = 32;
+
+    private final int slots;
+    private final int maxEntries;
+    private final AtomicInteger entries = new AtomicInteger();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong overflowMinute = new AtomicLong(Long.MIN_VALUE);
+    private volatile long coveredFromMinute = Long.MAX_VALUE;
+    private volatile boolean ready;
+
+    public RecentJoinIndex(int hours, int maxEntries) {
+        this.slots = Math.max(1, hours) * 60 + 1;
+        this.maxEntries = Math.max(1, maxEntries);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(slots);
+        }
+    }
+
+    /**
+     * Record joins at {@code ts}. Joins logged without a uuid (flood aggregates) only count
+     * towards totals, matching what storage can answer for unique counts.
+     */
+    public void record(String hostname, String uuidTrimLower, long ts, int joins) {
+        long minute = Math.floorDiv(ts, 60);
+        Stripe s = stripes[Math.floorMod(hostname.hashCode(), STRIPES)];
+        boolean indexed;
+        synchronized (s) {
+            indexed = s.record(hostname, uuidTrimLower, minute, joins);
+        }
+        if (!indexed) {
+            overflowMinute.accumulateAndGet(minute, Math::max);
+        }
+    }
+
+    /**
+     * Mark the index as complete from {@code fromTs} onwards (live recording plus warm-up);
+     * until then every query falls through to storage.
+     */
+    public void markReady(long fromTs) {
+        coveredFromMinute = Math.floorDiv(fromTs, 60);
+        ready = true;
+    }
+
+    /**
+     * Drop minutes that left the window, with the uuids last seen in them. Called from the tick
+     * thread; each stripe only does work once a minute, proportional to that minute's joins.
+     */
+    public void prune(long now) {
+        long oldest = Math.floorDiv(now, 60) - slots + 1;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                s.prune(oldest);
+            }
+        }
+    }
+
+    /** Joins per host since {@code start}, or null when the range is not held in memory. */
+    public Map<String, Integer> countsSince(long start, long now) {
+        return sumSince(start, now, false);
+    }
+
+    /** Distinct players per host since {@code start}, or null when the range is not held in memory. */
+    public Map<String, Integer> uniqueCountsSince(long start, long now) {
+        return sumSince(start, now, true);
+    }
+
+    public int getHours() { return (slots - 1) / 60; }
+
+    /** Host-minutes plus tracked uuids currently held. */
+    public int getEntries() { return entries.get(); }
+
+    /** Newest minute whose joins could not all be indexed, or {@code Long.MIN_VALUE}. */
+    public long getOverflowMinute() { return overflowMinute.get(); }
+
+    /** Take {@code n} entries from the shared budget; may overshoot by a few under contention. */
+    private boolean reserve(int n) {
+        if (entries.get() + n > maxEntries) return false;
+        entries.addAndGet(n);
+        return true;
+    }
+
+    private Map<String, Integer> sumSince(long start, long now, boolean unique) {
+        if (!ready || start <= 0) return null;
+        long startMinute = Math.floorDiv(start, 60);
+        if (startMinute < coveredFromMinute || startMinute <= Math.floorDiv(now, 60) - slots) return null;
+        if (startMinute <= overflowMinute.get()) return null;
+        Map<String, Integer> out = new HashMap<>();
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                s.sumInto(out, startMinute, unique);
+            }
+        }
+        // A join that overflowed while we were summing would make the answer short.
+        if (startMinute <= overflowMinute.get()) return null;
+        return out;
+    }
+
+    private final class Stripe {
+        final Bucket[] buckets;
+        final Map<String, Map<String, Seen>> lastSeen = new HashMap<>();
+        // Buckets replaced by record() before prune() got to them; expired on the next prune.
+        final List<Bucket> replaced = new ArrayList<>();
+        long prunedBefore = Long.MIN_VALUE;
+
+        Stripe(int slots) {
+            buckets = new Bucket[slots];
+        }
+
+        /** False when the join could not be fully indexed because the index is full. */
+        boolean record(String hostname, String uuidTrimLower, long minute, int joins) {
+            int slot = slotOf(minute);
+            Bucket b = buckets[slot];
+            if (b == null || b.minute < minute) {
+                if (b != null) replaced.add(b);
+                b = new Bucket(minute);
+                buckets[slot] = b;
+            } else if (b.minute > minute) {
+                return true; // older than the window
+            }
+            HostMinute hm = b.hosts.get(hostname);
+            if (hm == null) {
+                if (!reserve(1)) return false;
+                hm = new HostMinute();
+                b.hosts.put(hostname, hm);
+            }
+            hm.joins += joins;
+            if (uuidTrimLower == null) {
+                return true;
+            }
+            Map<String, Seen> hostSeen = lastSeen.get(hostname);
+            Seen seen = hostSeen != null ? hostSeen.get(uuidTrimLower) : null;
+            if (seen != null) {
+                if (seen.minute >= minute) return true;
+                Bucket pb = buckets[slotOf(seen.minute)];
+                HostMinute phm = pb != null && pb.minute == seen.minute ? pb.hosts.get(hostname) : null;
+                if (phm != null) phm.lastSeenHere--;
+                seen.minute = minute;
+            } else {
+                if (!reserve(hostSeen == null ? 2 : 1)) return false;
+                if (hostSeen == null) {
+                    hostSeen = new HashMap<>();
+                    lastSeen.put(hostname, hostSeen);
+                }
+                seen = new Seen(uuidTrimLower, minute);
+                hostSeen.put(uuidTrimLower, seen);
+            }
+            hm.lastSeenHere++;
+            hm.seen.add(seen);
+            return true;
+        }
+
+        /** Expire buckets older than {@code oldest}; only the minutes that aged out are touched. */
+        void prune(long oldest) {
+            if (prunedBefore == Long.MIN_VALUE) prunedBefore = oldest - slots;
+            for (long m = Math.max(prunedBefore, oldest - slots); m < oldest; m++) {
+                int slot = slotOf(m);
+                Bucket b = buckets[slot];
+                if (b != null && b.minute < oldest) {
+                    buckets[slot] = null;
+                    expire(b);
+                }
+            }
+            prunedBefore = Math.max(prunedBefore, oldest);
+            for (Bucket b : replaced) expire(b);
+            replaced.clear();
+        }
+
+        /** Forget the bucket and the uuids whose last join was in it. */
+        private void expire(Bucket b) {
+            int freed = 0;
+            for (Map.Entry<String, HostMinute> e : b.hosts.entrySet()) {
+                freed++;
+                Map<String, Seen> hostSeen = lastSeen.get(e.getKey());
+                if (hostSeen == null) continue;
+                for (Seen seen : e.getValue().seen) {
+                    if (seen.minute == b.minute && hostSeen.remove(seen.uuid) != null) freed++;
+                }
+                if (hostSeen.isEmpty()) {
+                    lastSeen.remove(e.getKey());
+                    freed++;
+                }
+            }
+            entries.addAndGet(-freed);
+        }
+
+        void sumInto(Map<String, Integer> out, long startMinute, boolean unique) {
+            for (Bucket b : buckets) {
+                if (b == null || b.minute < startMinute) continue;
+                for (Map.Entry<String, HostMinute> e : b.hosts.entrySet()) {
+                    int n = unique ? e.getValue().lastSeenHere : e.getValue().joins;
+                    if (n > 0) out.merge(e.getKey(), n, Integer::sum);
+                }
+            }
+        }
+
+        private int slotOf(long minute) {
+            return (int) Math.floorMod(minute, (long) slots);
+        }
+    }
+
+    private static final class Bucket {
+        final long minute;
+        final Map<String, HostMinute> hosts = new HashMap<>();
+
+        Bucket(long minute) {
+            this.minute = minute;
+        }
+    }
+
+    private static final class HostMinute {
+        int joins;
+        int lastSeenHere;
+        // Uuids whose last join moved to this minute; they are dropped with it unless seen again.
+        final List<Seen> seen = new ArrayList<>(2);
+    }
+
+    private static final class Seen {
+        final String uuid;
+        long minute;
+
+        Seen(String uuid, long minute) {
+            this.uuid = uuid;
+            this.minute = minute;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.sql.*;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class SQLite implements JoinStorage {
 
@@ -24,10 +25,40 @@ public class SQLite implements JoinStorage {
                     "hostname TEXT NOT NULL," +
                     "uuid TEXT NOT NULL," +
                     "player_name TEXT NOT NULL," +
-                    "ts INTEGER NOT NULL)");
+                    "ts INTEGER NOT NULL," +
+                    "is_first_join INTEGER NOT NULL DEFAULT 0)");
+            if (!hasColumn(st, "joins", "is_first_join")) {
+                // Databases from before first-join tracking: add the flag and mark each uuid's earliest row.
+                st.executeUpdate("ALTER TABLE joins ADD COLUMN is_first_join INTEGER NOT NULL DEFAULT 0");
+                st.executeUpdate("UPDATE joins SET is_first_join = 1 WHERE id IN (SELECT MIN(id) FROM joins GROUP BY uuid)");
+            }
             st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_joins_ts ON joins(ts)");
             st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_joins_host_ts ON joins(hostname, ts)");
             st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_joins_uuid_ts ON joins(uuid, ts)");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_joins_first_ts ON joins(is_first_join, ts)");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS join_floods (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "hostname TEXT NOT NULL," +
+                    "ts INTEGER NOT NULL," +
+                    "joins INTEGER NOT NULL," +
+                    "sample_uuids TEXT NOT NULL)");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_join_floods_ts ON join_floods(ts)");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_join_floods_host_ts ON join_floods(hostname, ts)");
+        }
+    }
+
+    @Override
+    public long finishUpgrade() {
+        // Local single-proxy file: the backfill already ran in init().
+        return 0;
+    }
+
+    private static boolean hasColumn(Statement st, String table, String column) throws SQLException {
+        try (ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) return true;
+            }
+            return false;
         }
     }
 
@@ -42,21 +73,106 @@ public class SQLite implements JoinStorage {
     }
 
     @Override
-    public void logJoinSync(String hostname, String uuidTrimLower, String playerName) throws Exception {
-        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO joins(hostname, uuid, player_name, ts) VALUES (?,?,?,?)")) {
+    public boolean isShared() {
+        return false;
+    }
+
+    @Override
+    public void logJoinSync(String hostname, String uuidTrimLower, String playerName, long ts, boolean firstJoin) throws Exception {
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO joins(hostname, uuid, player_name, ts, is_first_join) VALUES (?,?,?,?,?)")) {
+            ps.setString(1, hostname);
+            ps.setString(2, uuidTrimLower);
+            ps.setString(3, playerName);
+            ps.setLong(4, ts);
+            ps.setInt(5, firstJoin ? 1 : 0);
+            ps.executeUpdate();
+        }
+    }
+
+    @Override
+    public void logJoinCheckedSync(String hostname, String uuidTrimLower, String playerName, long ts) throws Exception {
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO joins(hostname, uuid, player_name, ts, is_first_join) " +
+                "SELECT ?, ?, ?, ?, NOT EXISTS (SELECT 1 FROM joins WHERE uuid = ?)")) {
             ps.setString(1, hostname);
             ps.setString(2, uuidTrimLower);
             ps.setString(3, playerName);
-            ps.setLong(4, System.currentTimeMillis() / 1000);
+            ps.setLong(4, ts);
+            ps.setString(5, uuidTrimLower);
+            ps.executeUpdate();
+        }
+    }
+
+    @Override
+    public String getIdentity() {
+        return "sqlite:" + file.getAbsolutePath();
+    }
+
+    @Override
+    public long maxJoinId() throws Exception {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT MAX(id) FROM joins")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    @Override
+    public boolean hasJoined(String uuidTrimLower) throws Exception {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM joins WHERE uuid = ? LIMIT 1")) {
+            ps.setString(1, uuidTrimLower);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    @Override
+    public void forEachUuidSince(long start, Consumer<String> sink) throws Exception {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT DISTINCT uuid FROM joins WHERE ts >= ?")) {
+            ps.setLong(1, start);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) sink.accept(rs.getString(1));
+            }
+        }
+    }
+
+    @Override
+    public void forEachJoinBetween(long from, long to, JoinRowSink sink) throws Exception {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT hostname, uuid, ts FROM joins WHERE ts >= ? AND ts < ?")) {
+            ps.setLong(1, from);
+            ps.setLong(2, to);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) sink.accept(rs.getString(1), rs.getString(2), rs.getLong(3), 1);
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement("SELECT hostname, ts, joins FROM join_floods WHERE ts >= ? AND ts < ?")) {
+            ps.setLong(1, from);
+            ps.setLong(2, to);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) sink.accept(rs.getString(1), null, rs.getLong(2), rs.getInt(3));
+            }
+        }
+    }
+
+    @Override
+    public void logFloodSync(String hostname, long second, int count, String sampleUuids) throws Exception {
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO join_floods(hostname, ts, joins, sample_uuids) VALUES (?,?,?,?)")) {
+            ps.setString(1, hostname);
+            ps.setLong(2, second);
+            ps.setInt(3, count);
+            ps.setString(4, sampleUuids);
             ps.executeUpdate();
         }
     }
 
     @Override
     public Map<String,Integer> queryCountsSince(long start) throws Exception {
-        final String sql = "SELECT hostname, COUNT(*) AS c FROM joins WHERE ts >= ? GROUP BY hostname";
+        final String sql = "SELECT hostname, SUM(c) AS c FROM (" +
+                "SELECT hostname, COUNT(*) AS c FROM joins WHERE ts >= ? GROUP BY hostname " +
+                "UNION ALL " +
+                "SELECT hostname, SUM(joins) AS c FROM join_floods WHERE ts >= ? GROUP BY hostname" +
+                ") t GROUP BY hostname";
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, start);
+            ps.setLong(2, start);
             try (ResultSet rs = ps.executeQuery()) {
                 Map<String,Integer> out = new HashMap<>();
                 while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
@@ -78,6 +194,19 @@ public class SQLite implements JoinStorage {
         }
     }
 
+    @Override
+    public Map<String,Integer> queryNewCountsSince(long start) throws Exception {
+        final String sql = "SELECT hostname, COUNT(*) AS c FROM joins WHERE is_first_join = 1 AND ts >= ? GROUP BY hostname";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, start);
+            try (ResultSet rs = ps.executeQuery()) {
+                Map<String,Integer> out = new HashMap<>();
+                while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
+                return out;
+            }
+        }
+    }
+
     @Override
     public Map<String,Integer> queryByUuidSince(String uuidTrimLower, long start) throws Exception {
         final String sql = "SELECT hostname, COUNT(*) AS c FROM joins WHERE uuid = ? AND ts >= ? GROUP BY hostname";
@@ -105,4 +234,17 @@ public class SQLite implements JoinStorage {
             }
         }
     }
+
+    @Override
+    public Map<String,Integer> queryFloodCountsSince(long start) throws Exception {
+        final String sql = "SELECT hostname, SUM(joins) AS c FROM join_floods WHERE ts >= ? GROUP BY hostname";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, start);
+            try (ResultSet rs = ps.executeQuery()) {
+                Map<String,Integer> out = new HashMap<>();
+                while (rs.next()) out.put(rs.getString(1), rs.getInt(2));
+                return out;
+            }
+        }
+    }
 }
@@ -0,0 +1,191 @@
+package com.megacraft.megajoins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scalable Bloom filter over trimmed uuids of every player that has joined. A miss means the
+ * player has certainly never been logged; a hit is only probable and callers confirm it against
+ * storage. When the newest stage reaches its capacity a stage twice as large with half the false
+ * positive rate is added, which keeps the overall rate below the configured one.
+ * Not thread-safe: it is built on a background thread and then only touched from the write worker.
+ */
+public final class SeenPlayerFilter {
+
+    private static final int MAGIC = 0x4D4A5346; // "MJSF"
+    private static final int VERSION = 2;
+
+    private final List<Stage> stages = new ArrayList<>();
+    private long coveredTs;
+    // Identity of the storage a loaded snapshot was taken from, and its highest join id then.
+    private String storageId = "";
+    private long maxJoinId;
+
+    public SeenPlayerFilter(long expectedPlayers, double falsePositiveRate) {
+        stages.add(new Stage(Math.max(1024, expectedPlayers), Math.min(0.5, Math.max(1e-9, falsePositiveRate) / 2)));
+    }
+
+    private SeenPlayerFilter() {
+    }
+
+    public boolean mightContain(String uuidTrimLower) {
+        long h1 = hash1(uuidTrimLower);
+        long h2 = hash2(uuidTrimLower, h1);
+        for (Stage s : stages) {
+            if (s.contains(h1, h2)) return true;
+        }
+        return false;
+    }
+
+    /** Record the uuid as seen in a join at {@code ts}. */
+    public void add(String uuidTrimLower, long ts) {
+        if (ts > coveredTs) coveredTs = ts;
+        long h1 = hash1(uuidTrimLower);
+        long h2 = hash2(uuidTrimLower, h1);
+        for (Stage s : stages) {
+            if (s.contains(h1, h2)) return;
+        }
+        Stage last = stages.get(stages.size() - 1);
+        if (last.count >= last.capacity) {
+            last = new Stage(last.capacity * 2, last.fpRate / 2);
+            stages.add(last);
+        }
+        last.put(h1, h2);
+    }
+
+    /** Newest join timestamp folded into the filter; rows after it must be replayed on load. */
+    public long getCoveredTs() { return coveredTs; }
+
+    public String getStorageId() { return storageId; }
+
+    public long getMaxJoinId() { return maxJoinId; }
+
+    public long getApproximateCount() {
+        long n = 0;
+        for (Stage s : stages) n += s.count;
+        return n;
+    }
+
+    /**
+     * Write a snapshot tagged with the storage it covers, so it is not reused against a different
+     * or rolled-back database.
+     */
+    public void save(File file, String storageId, long maxJoinId) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(storageId);
+            out.writeLong(maxJoinId);
+            out.writeLong(coveredTs);
+            out.writeInt(stages.size());
+            for (Stage s : stages) {
+                out.writeLong(s.capacity);
+                out.writeDouble(s.fpRate);
+                out.writeLong(s.count);
+                out.writeInt(s.bits.length);
+                for (long word : s.bits) out.writeLong(word);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Load a snapshot written by {@link #save}; returns null if it is missing or unreadable. */
+    public static SeenPlayerFilter load(File file) {
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            SeenPlayerFilter f = new SeenPlayerFilter();
+            f.storageId = in.readUTF();
+            f.maxJoinId = in.readLong();
+            f.coveredTs = in.readLong();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                long capacity = in.readLong();
+                double fpRate = in.readDouble();
+                long count = in.readLong();
+                int words = in.readInt();
+                Stage s = new Stage(capacity, fpRate);
+                if (s.bits.length != words) return null;
+                for (int w = 0; w < words; w++) s.bits[w] = in.readLong();
+                s.count = count;
+                f.stages.add(s);
+            }
+            return f.stages.isEmpty() ? null : f;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Trimmed uuids are 32 hex digits: use the two halves directly as the hash input.
+    private static long hash1(String uuid) {
+        if (uuid.length() == 32) {
+            try {
+                return mix(Long.parseUnsignedLong(uuid, 0, 16, 16));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return mix(uuid.hashCode() * 0x9E3779B97F4A7C15L);
+    }
+
+    private static long hash2(String uuid, long h1) {
+        if (uuid.length() == 32) {
+            try {
+                return mix(Long.parseUnsignedLong(uuid, 16, 32, 16) ^ 0xC2B2AE3D27D4EB4FL) | 1;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return mix(h1 ^ uuid.length()) | 1;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static final class Stage {
+        final long capacity;
+        final double fpRate;
+        final long[] bits;
+        final long numBits;
+        final int hashes;
+        long count;
+
+        Stage(long capacity, double fpRate) {
+            this.capacity = capacity;
+            this.fpRate = fpRate;
+            long m = (long) Math.ceil(-capacity * Math.log(fpRate) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min(Integer.MAX_VALUE - 8, (m + 63) / 64);
+            this.bits = new long[words];
+            this.numBits = (long) words * 64;
+            this.hashes = Math.max(1, (int) Math.round((double) numBits / capacity * Math.log(2)));
+        }
+
+        boolean contains(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, numBits);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        void put(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, numBits);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.megacraft.megajoins;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Standalone load/soak driver for the join ingest path. Event threads play the role of the
+ * proxy's netty threads and feed {@link JoinTracker#onJoin}/{@link JoinTracker#onQuit} (what the
+ * PostLoginEvent/PlayerDisconnectEvent handlers delegate to) at a fixed rate with host skew and
+ * player churn, while lookup threads run the command queries against the same storage (short
+ * ranges through the recent index first, as the command does).
+ * Simulated time runs {@code speedup} times faster than wall time, so a soak of several
+ * simulated hours fits in minutes.
+ *
+ * <pre>
+ * mvn -q test-compile org.codehaus.mojo:exec-maven-plugin:3.1.0:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.megacraft.megajoins.LoadHarness -Dexec.args="--rate=2000 --duration=60"
+ * </pre>
+ *
+ * Options (--key=value): backend (sqlite|mysql), sqlite-file, mysql-host, mysql-port,
+ * mysql-database, mysql-user, mysql-password, rate (joins/s), threads, duration (s), speedup,
+ * hosts, hot-hosts, hot-share, players, session (mean simulated seconds online), lookups (per s),
+ * report (s), seen-file, recent-index (true|false), flood (true|false, default false),
+ * flood-window, flood-enter, flood-exit, flood-sample (detector settings, defaults as in config.yml).
+ * Flood detection is off by default: at harness rates the hot hosts would go into flood mode and
+ * most joins would be written as aggregates, hiding the per-join insert cost being measured.
+ */
+public final class LoadHarness {
+
+    private final Map<String, String> opts;
+    private final JoinStorage storage;
+    private final JoinTracker tracker;
+    private final long simStart;
+    private final long wallStartNanos;
+    private final double speedup;
+
+    private final String[] hosts;
+    private final int hotHosts;
+    private final double hotShare;
+    private final int players;
+    private final double meanSession;
+
+    private final List<Latency> joinLatency = new ArrayList<>();
+    private final List<Latency> quitLatency = new ArrayList<>();
+    private final Latency lookupLatency = new Latency();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong quits = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong indexLookups = new AtomicLong();
+    private final AtomicLong lookupErrors = new AtomicLong();
+    private volatile boolean running = true;
+
+    private LoadHarness(Map<String, String> opts) throws Exception {
+        this.opts = opts;
+        this.storage = createStorage();
+        storage.init();
+        storage.finishUpgrade();
+        this.simStart = System.currentTimeMillis() / 1000;
+        this.wallStartNanos = System.nanoTime();
+        this.speedup = Double.parseDouble(opt("speedup", "1"));
+        this.tracker = new JoinTracker(storage, Logger.getLogger("MegaJoins-Load"), this::simNow, Runnable::run);
+        if (Boolean.parseBoolean(opt("flood", "false"))) {
+            tracker.enableFloodDetection(Integer.parseInt(opt("flood-window", "10")), Integer.parseInt(opt("flood-enter", "200")),
+                    Integer.parseInt(opt("flood-exit", "50")), Integer.parseInt(opt("flood-sample", "5")));
+        }
+        tracker.enableFirstJoinTracking(new File(opt("seen-file", "target/loadtest-seen.bin")), 100000, 0.001);
+        if (Boolean.parseBoolean(opt("recent-index", "true"))) {
+            tracker.enableRecentIndex(24, 300000);
+        }
+
+        int hostCount = Integer.parseInt(opt("hosts", "50"));
+        this.hosts = new String[hostCount];
+        for (int i = 0; i < hostCount; i++) {
+            hosts[i] = (i % 3 == 0 ? "play" : "mc" + i) + ".server" + (i / 3) + ".net";
+        }
+        this.hotHosts = Math.min(hostCount, Integer.parseInt(opt("hot-hosts", "3")));
+        this.hotShare = Double.parseDouble(opt("hot-share", "0.8"));
+        this.players = Integer.parseInt(opt("players", "20000"));
+        this.meanSession = Double.parseDouble(opt("session", "1800"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            if (!a.startsWith("--") || !a.contains("=")) {
+                System.err.println("Ignoring argument: " + a);
+                continue;
+            }
+            int eq = a.indexOf('=');
+            opts.put(a.substring(2, eq).toLowerCase(Locale.ROOT), a.substring(eq + 1));
+        }
+        new LoadHarness(opts).run();
+    }
+
+    private String opt(String key, String def) {
+        return opts.getOrDefault(key, def);
+    }
+
+    private JoinStorage createStorage() throws Exception {
+        String backend = opt("backend", "sqlite").toLowerCase(Locale.ROOT);
+        if (backend.equals("mysql")) {
+            return new MySQL(opt("mysql-host", "localhost"), Integer.parseInt(opt("mysql-port", "3306")),
+                    opt("mysql-database", "megajoins_load"), opt("mysql-user", "root"), opt("mysql-password", ""),
+                    false, true, Integer.parseInt(opt("mysql-pool", "5")), new HashMap<>());
+        }
+        File file = new File(opt("sqlite-file", "target/loadtest.db"));
+        return new SQLite(file.getAbsoluteFile().getParentFile(), file.getName());
+    }
+
+    private long simNow() {
+        return simStart + (long) ((System.nanoTime() - wallStartNanos) / 1e9 * speedup);
+    }
+
+    private void run() throws Exception {
+        int rate = Integer.parseInt(opt("rate", "500"));
+        int threads = Math.max(1, Integer.parseInt(opt("threads", "4")));
+        long duration = Long.parseLong(opt("duration", "60"));
+        double lookupRate = Double.parseDouble(opt("lookups", "2"));
+        long reportEvery = Long.parseLong(opt("report", "10"));
+
+        long[] rowsBefore = countRows();
+        MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = mem.getHeapMemoryUsage().getUsed();
+        System.out.printf(Locale.ROOT, "MegaJoins load: backend=%s rate=%d/s threads=%d duration=%ds speedup=%.0fx (%.1fh simulated), flood=%s, %d existing joins rows%n",
+                opt("backend", "sqlite"), rate, threads, duration, speedup, duration * speedup / 3600.0,
+                tracker.getFloodDetector() != null, rowsBefore[0]);
+
+        ScheduledExecutorService sched = Executors.newScheduledThreadPool(3);
+        long tickMillis = Math.max(1, (long) (1000 / speedup));
+        sched.scheduleAtFixedRate(tracker::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        if (lookupRate > 0) {
+            long lookupMicros = (long) (1_000_000 / lookupRate);
+            sched.scheduleAtFixedRate(this::runLookup, lookupMicros, lookupMicros, TimeUnit.MICROSECONDS);
+        }
+
+        List<Thread> drivers = new ArrayList<>();
+        long intervalNanos = (long) (1e9 * threads / Math.max(1, rate));
+        for (int i = 0; i < threads; i++) {
+            Latency jl = new Latency();
+            Latency ql = new Latency();
+            joinLatency.add(jl);
+            quitLatency.add(ql);
+            Thread t = new Thread(() -> drive(intervalNanos, jl, ql), "Load-Event-" + i);
+            t.setDaemon(true);
+            drivers.add(t);
+            t.start();
+        }
+        sched.scheduleAtFixedRate(() -> report(mem, heapBefore), reportEvery, reportEvery, TimeUnit.SECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        running = false;
+        for (Thread t : drivers) t.join();
+        sched.shutdownNow();
+
+        long drainStart = System.nanoTime();
+        while (tracker.getWriteQueueDepth() > 0) {
+            Thread.sleep(100);
+        }
+        double drainSecs = (System.nanoTime() - drainStart) / 1e9;
+        report(mem, heapBefore);
+        tracker.shutdown();
+
+        System.gc();
+        long heapAfter = mem.getHeapMemoryUsage().getUsed();
+        long[] rows = countRows();
+        long logged = rows[0] - rowsBefore[0];
+        long floodRows = rows[1] - rowsBefore[1];
+        long absorbed = rows[2] - rowsBefore[2];
+        System.out.printf(Locale.ROOT, "Done: %d joins, %d quits | %d logged individually (joins rows), %d absorbed by flood mode"
+                        + " (%d join_floods rows), %d missing | write backlog drained in %.1fs, heap after GC %+.1f MB%n",
+                joins.get(), quits.get(), logged, absorbed, floodRows, joins.get() - logged - absorbed,
+                drainSecs, (heapAfter - heapBefore) / 1048576.0);
+        storage.shutdown();
+    }
+
+    /** One simulated event thread: due disconnects first, then one join per interval (open loop). */
+    private void drive(long intervalNanos, Latency jl, Latency ql) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        PriorityQueue<long[]> sessions = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        long next = System.nanoTime();
+        while (running) {
+            long now = simNow();
+            while (!sessions.isEmpty() && sessions.peek()[0] <= now) {
+                long[] s = sessions.poll();
+                UUID id = new UUID(s[1], s[2]);
+                long t0 = System.nanoTime();
+                tracker.onQuit(id);
+                ql.record(System.nanoTime() - t0);
+                quits.incrementAndGet();
+            }
+
+            String host = rnd.nextDouble() < hotShare
+                    ? hosts[rnd.nextInt(Math.max(1, hotHosts))]
+                    : hosts[rnd.nextInt(hosts.length)];
+            String name = "Load" + rnd.nextInt(players);
+            UUID id = UUID.randomUUID();
+            long t0 = System.nanoTime();
+            tracker.onJoin(id, host, name);
+            jl.record(System.nanoTime() - t0);
+            joins.incrementAndGet();
+            long stay = (long) (-Math.log(1 - rnd.nextDouble()) * meanSession);
+            sessions.add(new long[]{now + stay, id.getMostSignificantBits(), id.getLeastSignificantBits()});
+
+            next += intervalNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void runLookup() {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long now = simNow();
+        long t0 = System.nanoTime();
+        try {
+            switch (rnd.nextInt(6)) {
+                case 0: rangeCounts(now - 3600, false); break;
+                case 1: rangeCounts(now - 86400, false); break;
+                case 2: rangeCounts(now - 86400, true); break;
+                case 3: storage.queryCountsSince(0); break;
+                case 4: storage.queryByUuidSince(IdUtil.offlineUuidTrimmed("Load" + rnd.nextInt(players)), 0); break;
+                default: storage.queryByUuidPrefixSince(IdUtil.offlineUuidTrimmed("Load" + rnd.nextInt(players)).substring(0, 4), 0); break;
+            }
+            lookupLatency.record(System.nanoTime() - t0);
+            lookups.incrementAndGet();
+        } catch (Exception e) {
+            lookupErrors.incrementAndGet();
+        }
+    }
+
+    /** Same decision as the range commands: the recent index when it holds the range, else storage. */
+    private Map<String, Integer> rangeCounts(long start, boolean unique) throws Exception {
+        Map<String, Integer> recent = tracker.recentCountsSince(start, unique);
+        if (recent != null) {
+            indexLookups.incrementAndGet();
+            return recent;
+        }
+        return unique ? storage.queryUniqueCountsSince(start) : storage.queryCountsSince(start);
+    }
+
+    /**
+     * Rows in joins, rows in join_floods and the joins those aggregates absorbed, counted in the
+     * tables themselves (the count queries fold aggregates into the totals).
+     */
+    private long[] countRows() throws Exception {
+        String url;
+        String user = null;
+        String password = null;
+        if (opt("backend", "sqlite").equalsIgnoreCase("mysql")) {
+            url = "jdbc:mysql://" + opt("mysql-host", "localhost") + ":" + opt("mysql-port", "3306") + "/"
+                    + opt("mysql-database", "megajoins_load") + "?useSSL=false&serverTimezone=UTC&allowPublicKeyRetrieval=true";
+            user = opt("mysql-user", "root");
+            password = opt("mysql-password", "");
+        } else {
+            url = "jdbc:sqlite:" + new File(opt("sqlite-file", "target/loadtest.db")).getAbsolutePath();
+        }
+        try (Connection c = DriverManager.getConnection(url, user, password);
+             Statement st = c.createStatement()) {
+            long[] out = new long[3];
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM joins")) {
+                if (rs.next()) out[0] = rs.getLong(1);
+            }
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*), COALESCE(SUM(joins), 0) FROM join_floods")) {
+                if (rs.next()) {
+                    out[1] = rs.getLong(1);
+                    out[2] = rs.getLong(2);
+                }
+            }
+            return out;
+        }
+    }
+
+    private void report(MemoryMXBean mem, long heapBefore) {
+        long[] j = Latency.merge(joinLatency);
+        long[] q = Latency.merge(quitLatency);
+        long[] l = lookupLatency.snapshot();
+        int online = 0;
+        for (int c : tracker.getCurrentCounts().values()) online += c;
+        int floods = 0;
+        JoinFloodDetector detector = tracker.getFloodDetector();
+        if (detector != null) {
+            for (JoinFloodDetector.FloodEvent ev : detector.getRecentEvents()) {
+                if (ev.isActive()) floods++;
+            }
+        }
+        System.out.printf(Locale.ROOT, "[sim +%.2fh] joins=%d quits=%d online=%d | join us p50=%s p99=%s p99.9=%s max=%s | quit us p99=%s"
+                        + " | queue=%d written=%d floods=%d | lookups=%d index=%d err=%d ms p50=%s p99=%s | heap %+.1f MB%n",
+                (simNow() - simStart) / 3600.0, joins.get(), quits.get(), online,
+                pct(j, 0.50, 1e3), pct(j, 0.99, 1e3), pct(j, 0.999, 1e3), pct(j, 1.0, 1e3), pct(q, 0.99, 1e3),
+                tracker.getWriteQueueDepth(), tracker.getCompletedWrites(), floods,
+                lookups.get(), indexLookups.get(), lookupErrors.get(), pct(l, 0.50, 1e6), pct(l, 0.99, 1e6),
+                (mem.getHeapMemoryUsage().getUsed() - heapBefore) / 1048576.0);
+    }
+
+    private static String pct(long[] sorted, double p, double unit) {
+        if (sorted.length == 0) return "-";
+        int idx = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return String.format(Locale.ROOT, "%.1f", sorted[Math.max(0, idx)] / unit);
+    }
+
+    /** Ring of the most recent samples in nanoseconds; one instance per recording thread. */
+    private static final class Latency {
+        private final long[] ring = new long[1 << 16];
+        private long count;
+
+        synchronized void record(long nanos) {
+            ring[(int) (count++ & (ring.length - 1))] = nanos;
+        }
+
+        synchronized long[] snapshot() {
+            long[] out = Arrays.copyOf(ring, (int) Math.min(count, ring.length));
+            Arrays.sort(out);
+            return out;
+        }
+
+        static long[] merge(List<Latency> all) {
+            long[][] parts = new long[all.size()][];
+            int n = 0;
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = all.get(i).snapshot();
+                n += parts[i].length;
+            }
+            long[] out = new long[n];
+            int pos = 0;
+            for (long[] part : parts) {
+                System.arraycopy(part, 0, out, pos, part.length);
+                pos += part.length;
+            }
+            Arrays.sort(out);
+            return out;
+        }
+    }
+}
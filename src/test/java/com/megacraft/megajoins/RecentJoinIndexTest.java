@@ -0,0 +1,177 @@
+package com.megacraft.megajoins;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the in-memory recent index against SQLite: every range the index answers must match
+ * what storage returns for the same (minute-aligned) start.
+ */
+class RecentJoinIndexTest {
+
+    private static final long NOW = 1_700_000_000L / 60 * 60 + 30;
+    private static final String HOT = "play.hot.example.com";
+
+    @TempDir
+    File dir;
+
+    private SQLite storage;
+
+    @BeforeEach
+    void openStorage() throws Exception {
+        storage = new SQLite(dir, "test.db");
+        storage.init();
+    }
+
+    @AfterEach
+    void closeStorage() {
+        storage.shutdown();
+    }
+
+    @Test
+    void hotHostMatchesStorageAtDefaultBudget() throws Exception {
+        // One host with more distinct players in two hours than a 1/32 share of the budget holds.
+        Random rnd = new Random(1);
+        List<Row> rows = new ArrayList<>();
+        for (int p = 0; p < 12_000; p++) {
+            String uuid = uuid(p);
+            int visits = 1 + rnd.nextInt(3);
+            for (int v = 0; v < visits; v++) {
+                rows.add(new Row(HOT, uuid, NOW - 1 - rnd.nextInt(2 * 3600), 1));
+            }
+        }
+        for (int i = 0; i < 2_000; i++) {
+            rows.add(new Row("lobby" + rnd.nextInt(5) + ".example.net", uuid(rnd.nextInt(20_000)), NOW - 1 - rnd.nextInt(6 * 3600), 1));
+        }
+        for (int i = 0; i < 50; i++) {
+            rows.add(new Row(HOT, null, NOW - 1 - rnd.nextInt(3600), 20 + rnd.nextInt(100)));
+        }
+        insert(rows);
+
+        // Older half arrives through the startup warm-up, newer half live, as in JoinTracker.
+        long liveFrom = NOW - 3600;
+        RecentJoinIndex index = new RecentJoinIndex(24, 300_000);
+        storage.forEachJoinBetween(NOW - 24 * 3600, liveFrom, index::record);
+        index.markReady(NOW - 24 * 3600);
+        rows.sort((a, b) -> Long.compare(a.ts, b.ts));
+        for (Row r : rows) {
+            if (r.ts >= liveFrom) {
+                index.record(r.host, r.uuid, r.ts, r.joins);
+                index.prune(r.ts);
+            }
+        }
+        index.prune(NOW);
+
+        assertEquals(Long.MIN_VALUE, index.getOverflowMinute());
+        for (long back : new long[] {60, 600, 3600, 2 * 3600, 6 * 3600, 24 * 3600 - 60}) {
+            assertMatchesStorage(index, NOW - back);
+        }
+    }
+
+    @Test
+    void pruningKeepsAnswersExactAsTheWindowMoves() throws Exception {
+        // Returning players across three hours of a one-hour window: uuids whose last join
+        // aged out must drop from unique counts, and recent returns must not be lost.
+        Random rnd = new Random(2);
+        List<Row> rows = new ArrayList<>();
+        long from = NOW - 3 * 3600;
+        for (long ts = from; ts < NOW; ts += 1 + rnd.nextInt(3)) {
+            rows.add(new Row(rnd.nextInt(4) == 0 ? "b.example.org" : HOT, uuid(rnd.nextInt(3_000)), ts, 1));
+        }
+        insert(rows);
+
+        RecentJoinIndex index = new RecentJoinIndex(1, 300_000);
+        index.markReady(from);
+        for (Row r : rows) {
+            index.prune(r.ts);
+            index.record(r.host, r.uuid, r.ts, r.joins);
+        }
+        index.prune(NOW);
+
+        for (long back : new long[] {60, 1800, 3540}) {
+            assertMatchesStorage(index, NOW - back);
+        }
+        assertNull(index.countsSince(NOW - 2 * 3600, NOW));
+        int held = index.getEntries();
+        assertTrue(held > 0 && held <= 61 * 2 + 3_000 + 2, "entries " + held);
+    }
+
+    @Test
+    void fullIndexLeavesOverflowedRangesToStorage() throws Exception {
+        RecentJoinIndex index = new RecentJoinIndex(1, 1_000);
+        index.markReady(NOW - 3600);
+        for (int p = 0; p < 2_000; p++) {
+            index.record(HOT, uuid(p), NOW - 1800, 1);
+        }
+        assertNull(index.countsSince(NOW - 3000, NOW));
+        assertNull(index.uniqueCountsSince(NOW - 1800, NOW));
+
+        // Once the overflowed minute leaves the window the budget is free again.
+        long later = NOW + 3600;
+        index.prune(later);
+        assertEquals(0, index.getEntries());
+        index.record(HOT, uuid(1), later - 10, 1);
+        Map<String, Integer> counts = index.countsSince(later - 60, later);
+        assertNotNull(counts);
+        assertEquals(1, counts.get(HOT));
+    }
+
+    private void assertMatchesStorage(RecentJoinIndex index, long start) throws Exception {
+        long aligned = Math.floorDiv(start, 60) * 60;
+        Map<String, Integer> counts = index.countsSince(start, NOW);
+        Map<String, Integer> unique = index.uniqueCountsSince(start, NOW);
+        assertNotNull(counts, "index did not answer totals since " + (NOW - start) + "s ago");
+        assertNotNull(unique, "index did not answer uniques since " + (NOW - start) + "s ago");
+        assertEquals(storage.queryCountsSince(aligned), counts, "totals since " + (NOW - start) + "s ago");
+        assertEquals(storage.queryUniqueCountsSince(aligned), unique, "uniques since " + (NOW - start) + "s ago");
+    }
+
+    /** Bulk insert in one transaction; logJoinSync commits per row, which is too slow here. */
+    private void insert(List<Row> rows) throws Exception {
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + new File(dir, "test.db").getAbsolutePath())) {
+            c.setAutoCommit(false);
+            try (PreparedStatement joins = c.prepareStatement("INSERT INTO joins(hostname, uuid, player_name, ts) VALUES (?,?,?,?)");
+                 PreparedStatement floods = c.prepareStatement("INSERT INTO join_floods(hostname, ts, joins, sample_uuids) VALUES (?,?,?,'')")) {
+                for (Row r : rows) {
+                    if (r.uuid == null) {
+                        floods.setString(1, r.host);
+                        floods.setLong(2, r.ts);
+                        floods.setInt(3, r.joins);
+                        floods.addBatch();
+                    } else {
+                        joins.setString(1, r.host);
+                        joins.setString(2, r.uuid);
+                        joins.setString(3, "p" + r.uuid.substring(0, 8));
+                        joins.setLong(4, r.ts);
+                        joins.addBatch();
+                    }
+                }
+                joins.executeBatch();
+                floods.executeBatch();
+            }
+            c.commit();
+        }
+    }
+
+    private static String uuid(int player) {
+        return String.format("%032x", 0x5eed0000L + player);
+    }
+
+    private record Row(String host, String uuid, long ts, int joins) {}
+}